@@ -0,0 +1,71 @@
+package de.artcom.hsm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.artcom.hsm.EventTypes;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.TransitionKind;
+
+@State(Scope.Thread)
+public class FlatMachineBenchmark {
+
+    @Param({"2", "16", "128"})
+    public int states;
+
+    private StateMachine mStateMachine;
+    private StateMachine mFilteringStateMachine;
+    private Map<String, Object> mPayload;
+    private int mNextEventType;
+
+    @Setup
+    public void setUp() {
+        de.artcom.hsm.State[] stateList = new de.artcom.hsm.State[states];
+        for (int i = 0; i < states; i++) {
+            stateList[i] = new de.artcom.hsm.State("s" + i);
+        }
+        for (int i = 0; i < states; i++) {
+            stateList[i].addHandler("next", stateList[(i + 1) % states], TransitionKind.External);
+        }
+        de.artcom.hsm.State[] otherStates = new de.artcom.hsm.State[states - 1];
+        System.arraycopy(stateList, 1, otherStates, 0, states - 1);
+        mStateMachine = new StateMachine(stateList[0], otherStates);
+        mStateMachine.init();
+        mFilteringStateMachine = new StateMachine(new de.artcom.hsm.State("filtering"));
+        mFilteringStateMachine.setIgnoreUnknownEvents(true);
+        mFilteringStateMachine.init();
+        mPayload = new HashMap<String, Object>();
+        mNextEventType = EventTypes.lookup("next");
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        mStateMachine.handleEvent("next", mPayload);
+    }
+
+    @Benchmark
+    public void handleEventType() {
+        mStateMachine.handleEvent(mNextEventType, mPayload);
+    }
+
+    @Benchmark
+    public void handleEventWithoutPayload() {
+        mStateMachine.handleEvent("next");
+    }
+
+    @Benchmark
+    public void handleUnknownEvent() {
+        mStateMachine.handleEvent("unknown", mPayload);
+    }
+
+    @Benchmark
+    public void ignoreUnknownEvent() {
+        mFilteringStateMachine.handleEvent("unknown", mPayload);
+    }
+}
@@ -0,0 +1,70 @@
+package de.artcom.hsm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.artcom.hsm.Guard;
+import de.artcom.hsm.KeyedGuard;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.TransitionKind;
+
+@State(Scope.Thread)
+public class GuardedHandlerBenchmark {
+
+    @Param({"1", "8", "64"})
+    public int guards;
+
+    private StateMachine mStateMachine;
+    private StateMachine mKeyedStateMachine;
+    private Map<String, Object> mFirstRoute;
+    private Map<String, Object> mLastRoute;
+
+    @Setup
+    public void setUp() {
+        de.artcom.hsm.State routing = new de.artcom.hsm.State("routing");
+        for (int i = 0; i < guards; i++) {
+            final Integer route = i;
+            routing.addHandler("route", routing, TransitionKind.Internal, new Guard() {
+                @Override
+                public boolean evaluate(Map<String, Object> payload) {
+                    return route.equals(payload.get("route"));
+                }
+            });
+        }
+        mStateMachine = new StateMachine(routing);
+        mStateMachine.init();
+
+        de.artcom.hsm.State keyedRouting = new de.artcom.hsm.State("keyedRouting");
+        for (int i = 0; i < guards; i++) {
+            keyedRouting.addHandler("route", keyedRouting, TransitionKind.Internal, new KeyedGuard("route", i));
+        }
+        mKeyedStateMachine = new StateMachine(keyedRouting);
+        mKeyedStateMachine.init();
+
+        mFirstRoute = new HashMap<String, Object>();
+        mFirstRoute.put("route", 0);
+        mLastRoute = new HashMap<String, Object>();
+        mLastRoute.put("route", guards - 1);
+    }
+
+    @Benchmark
+    public void firstGuardMatches() {
+        mStateMachine.handleEvent("route", mFirstRoute);
+    }
+
+    @Benchmark
+    public void lastGuardMatches() {
+        mStateMachine.handleEvent("route", mLastRoute);
+    }
+
+    @Benchmark
+    public void lastKeyedGuardMatches() {
+        mKeyedStateMachine.handleEvent("route", mLastRoute);
+    }
+}
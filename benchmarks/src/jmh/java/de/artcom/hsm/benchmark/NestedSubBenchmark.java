@@ -0,0 +1,72 @@
+package de.artcom.hsm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionKind;
+
+@State(Scope.Thread)
+public class NestedSubBenchmark {
+
+    @Param({"2", "4", "8"})
+    public int depth;
+
+    private StateMachine mStateMachine;
+    private Map<String, Object> mPayload;
+
+    @Setup
+    public void setUp() {
+        // two chains of nested subs, "a" and "b", each ending in two sibling leaf states
+        de.artcom.hsm.State a1 = new de.artcom.hsm.State("a1");
+        de.artcom.hsm.State a2 = new de.artcom.hsm.State("a2");
+        de.artcom.hsm.State b1 = new de.artcom.hsm.State("b1");
+        de.artcom.hsm.State b2 = new de.artcom.hsm.State("b2");
+
+        a1.addHandler("sibling", a2, TransitionKind.External);
+        a2.addHandler("sibling", a1, TransitionKind.External);
+        b1.addHandler("sibling", b2, TransitionKind.External);
+        b2.addHandler("sibling", b1, TransitionKind.External);
+
+        a1.addHandler("cross", b1, TransitionKind.External);
+        a2.addHandler("cross", b1, TransitionKind.External);
+        b1.addHandler("cross", a1, TransitionKind.External);
+        b2.addHandler("cross", a1, TransitionKind.External);
+
+        Sub a = chain("a", depth, a1, a2);
+        Sub b = chain("b", depth, b1, b2);
+        mStateMachine = new StateMachine(a, b);
+        mStateMachine.init();
+        mPayload = new HashMap<String, Object>();
+    }
+
+    private static Sub chain(String prefix, int depth, de.artcom.hsm.State initial, de.artcom.hsm.State sibling) {
+        Sub sub = new Sub(prefix + "Level" + depth, initial, sibling);
+        for (int level = depth - 1; level > 0; level--) {
+            sub = new Sub(prefix + "Level" + level, sub);
+        }
+        return sub;
+    }
+
+    @Benchmark
+    public void siblingTransition() {
+        mStateMachine.handleEvent("sibling", mPayload);
+    }
+
+    @Benchmark
+    public void crossHierarchyTransition() {
+        mStateMachine.handleEvent("cross", mPayload);
+    }
+
+    @Benchmark
+    public void unhandledEvent() {
+        mStateMachine.handleEvent("unknown", mPayload);
+    }
+}
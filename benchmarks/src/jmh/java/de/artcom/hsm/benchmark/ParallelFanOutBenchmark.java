@@ -0,0 +1,61 @@
+package de.artcom.hsm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.artcom.hsm.Parallel;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.TransitionKind;
+
+@State(Scope.Thread)
+public class ParallelFanOutBenchmark {
+
+    @Param({"2", "8", "32"})
+    public int regions;
+
+    private StateMachine mStateMachine;
+    private Map<String, Object> mPayload;
+
+    @Setup
+    public void setUp() {
+        StateMachine[] regionList = new StateMachine[regions];
+        for (int i = 0; i < regions; i++) {
+            de.artcom.hsm.State on = new de.artcom.hsm.State("on" + i);
+            de.artcom.hsm.State off = new de.artcom.hsm.State("off" + i);
+            on.addHandler("toggle", off, TransitionKind.External);
+            off.addHandler("toggle", on, TransitionKind.External);
+            if (i == 0) {
+                on.addHandler("first", off, TransitionKind.External);
+                off.addHandler("first", on, TransitionKind.External);
+            }
+            regionList[i] = new StateMachine(off, on);
+        }
+        Parallel parallel = new Parallel("parallel", regionList);
+        de.artcom.hsm.State idle = new de.artcom.hsm.State("idle");
+        parallel.addHandler("restart", parallel, TransitionKind.External);
+        mStateMachine = new StateMachine(parallel, idle);
+        mStateMachine.init();
+        mPayload = new HashMap<String, Object>();
+    }
+
+    @Benchmark
+    public void allRegionsHandle() {
+        mStateMachine.handleEvent("toggle", mPayload);
+    }
+
+    @Benchmark
+    public void singleRegionHandles() {
+        mStateMachine.handleEvent("first", mPayload);
+    }
+
+    @Benchmark
+    public void reenterParallel() {
+        mStateMachine.handleEvent("restart", mPayload);
+    }
+}
@@ -0,0 +1,43 @@
+package de.artcom.hsm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionKind;
+
+@State(Scope.Thread)
+public class TransitionKindBenchmark {
+
+    @Param({"External", "Local", "Internal"})
+    public TransitionKind kind;
+
+    private StateMachine mStateMachine;
+    private Map<String, Object> mPayload;
+
+    @Setup
+    public void setUp() {
+        // the parent handles the event and targets its own initial child, so every
+        // kind leaves the configuration unchanged and can be dispatched repeatedly
+        de.artcom.hsm.State child1 = new de.artcom.hsm.State("child1");
+        de.artcom.hsm.State child2 = new de.artcom.hsm.State("child2");
+        Sub parent = new Sub("parent", child1, child2);
+        parent.addHandler("T", child1, kind);
+        de.artcom.hsm.State other = new de.artcom.hsm.State("other");
+        mStateMachine = new StateMachine(new Sub("root", parent, other));
+        mStateMachine.init();
+        mPayload = new HashMap<String, Object>();
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        mStateMachine.handleEvent("T", mPayload);
+    }
+}
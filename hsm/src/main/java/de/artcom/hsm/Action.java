@@ -2,7 +2,12 @@ package de.artcom.hsm;
 
 import java.util.Map;
 
-public abstract class Action {
+/**
+ * Action which gets the transition through its fields. The fields are overwritten on every run,
+ * so an instance must not be shared by state machines running concurrently, see
+ * {@link TransitionAction}.
+ */
+public abstract class Action implements TransitionAction {
 
     protected State mPreviousState;
     protected State mNextState;
@@ -10,6 +15,18 @@ public abstract class Action {
 
     public abstract void run();
 
+    @Override
+    public void run(TransitionContext context) {
+        execute(context.getPreviousState(), context.getNextState(), context.getPayload());
+    }
+
+    void execute(State previousState, State nextState, Map<String, Object> payload) {
+        setPreviousState(previousState);
+        setNextState(nextState);
+        setPayload(payload);
+        run();
+    }
+
     void setPreviousState(State state) {
         mPreviousState = state;
     }
@@ -0,0 +1,43 @@
+package de.artcom.hsm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// default executor for asynchronous event handling: virtual threads where the JDK provides them,
+// a cached pool of daemon threads otherwise
+final class AsyncExecutor {
+
+    private AsyncExecutor() {
+    }
+
+    static Executor getDefault() {
+        return Holder.EXECUTOR;
+    }
+
+    private static final class Holder {
+
+        static final Executor EXECUTOR = create();
+
+        private static Executor create() {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                return Executors.newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "hsm-async-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+    }
+}
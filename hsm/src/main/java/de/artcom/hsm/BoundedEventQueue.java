@@ -0,0 +1,16 @@
+package de.artcom.hsm;
+
+import java.util.Queue;
+
+// An event queue whose offer fails when it is full.
+interface BoundedEventQueue extends Queue<Event> {
+
+    int capacity();
+
+    // queues the event even if the queue is full, it is polled after the events queued before it
+    void offerBeyondCapacity(Event event);
+
+    // removes the oldest event which counts against the capacity to make room for the event,
+    // null if there is none
+    Event pollOldest(Event event);
+}
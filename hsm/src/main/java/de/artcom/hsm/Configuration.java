@@ -0,0 +1,114 @@
+package de.artcom.hsm;
+
+// An active configuration of a model: the active state of every state machine, as held by an
+// instance. Configurations are cached by the model and shared by all instances which are in
+// them, together with the dispatch chain of every event type of the model.
+final class Configuration {
+
+    private final State[] mStates;
+    private final int mHash;
+    // next configuration in the same bucket of the model's table
+    final Configuration mNext;
+    // indexed by the dense number of the event type, see StateMachine.getSymbols(). Racing
+    // threads collect equal chains.
+    private final Chain[] mChains;
+
+    Configuration(State[] states, int hash, int symbolCount) {
+        mStates = states;
+        mHash = hash;
+        mNext = null;
+        mChains = new Chain[symbolCount];
+    }
+
+    Configuration(Configuration configuration, Configuration next) {
+        mStates = configuration.mStates;
+        mHash = configuration.mHash;
+        mNext = next;
+        mChains = configuration.mChains;
+    }
+
+    static int hash(State[] states) {
+        int hash = 1;
+        for (State state : states) {
+            hash = 31 * hash + (state != null ? state.getIndex() + 1 : 0);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    int getHash() {
+        return mHash;
+    }
+
+    boolean matches(int hash, State[] states) {
+        if (hash != mHash) {
+            return false;
+        }
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != mStates[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Chain chain(int symbol, int eventType) {
+        Chain chain = mChains[symbol];
+        if (chain == null) {
+            chain = collect(eventType);
+            mChains[symbol] = chain;
+        }
+        return chain;
+    }
+
+    // States which are active have all their ancestors active, so when the states with handlers
+    // are nested in each other, handing the event to them innermost first does what walking the
+    // hierarchy from the top does, without visiting the other states. Regions of concurrent
+    // parallel states are only reached by the walk, which hands them their own payload.
+    private Chain collect(int eventType) {
+        State[] states = new State[mStates.length];
+        int length = 0;
+        boolean walk = false;
+        boolean deferred = false;
+        State concurrent = null;
+        for (State state : mStates) {
+            if (state == null) {
+                continue;
+            }
+            if (state.defers(eventType)) {
+                deferred = true;
+            }
+            if (state.hasHandlers(eventType)) {
+                if (length > 0 && !state.isDescendantOf(states[length - 1])) {
+                    walk = true;
+                }
+                if (concurrent != null && state.isDescendantOf(concurrent)) {
+                    walk = true;
+                }
+                states[length++] = state;
+            }
+            // machines are indexed depth-first, the descendants of a state follow it
+            if (state instanceof Parallel && ((Parallel) state).isConcurrent()
+                    && (concurrent == null || !state.isDescendantOf(concurrent))) {
+                concurrent = state;
+            }
+        }
+        State[] chain = new State[length];
+        System.arraycopy(states, 0, chain, 0, length);
+        return new Chain(chain, walk, deferred);
+    }
+
+    // the active states with handlers for an event type, outermost first
+    static final class Chain {
+
+        final State[] mStates;
+        // the handling states are not all nested in each other, the hierarchy has to be walked
+        final boolean mWalk;
+        final boolean mDeferred;
+
+        Chain(State[] states, boolean walk, boolean deferred) {
+            mStates = states;
+            mWalk = walk;
+            mDeferred = deferred;
+        }
+    }
+}
@@ -1,18 +1,59 @@
 package de.artcom.hsm;
 
+import com.google.common.util.concurrent.SettableFuture;
+
 import java.util.Map;
 
 class Event {
 
-    private final Map<String, Object> mPayload;
+    private Map<String, Object> mPayload;
+
+    private String mName;
+
+    private int mType;
+
+    private SettableFuture<EventResult> mResult;
+
+    private Timeout mTimeout;
 
-    private final String mName;
+    private long mSequence;
+
+    private int mLane;
+
+    Event() {
+        mType = EventTypes.UNKNOWN;
+    }
 
     public Event(String name, Map<String, Object> payload) {
+        this(EventTypes.lookup(name), name, payload);
+    }
+
+    public Event(int type, String name, Map<String, Object> payload) {
+        mType = type;
+        mName = name;
+        mPayload = payload;
+    }
+
+    public Event(int type, String name, Map<String, Object> payload, SettableFuture<EventResult> result) {
+        this(type, name, payload);
+        mResult = result;
+    }
+
+    Event(int type, String name, Map<String, Object> payload, Timeout timeout) {
+        this(type, name, payload);
+        mTimeout = timeout;
+    }
+
+    void set(int type, String name, Map<String, Object> payload) {
+        mType = type;
         mName = name;
         mPayload = payload;
     }
 
+    void clear() {
+        set(EventTypes.UNKNOWN, null, null);
+    }
+
     public Map<String, Object> getPayload() {
         return mPayload;
     }
@@ -21,4 +62,34 @@ class Event {
         return mName;
     }
 
+    public int getType() {
+        return mType;
+    }
+
+    SettableFuture<EventResult> getResult() {
+        return mResult;
+    }
+
+    Timeout getTimeout() {
+        return mTimeout;
+    }
+
+    // order in which deferred events were parked
+    long getSequence() {
+        return mSequence;
+    }
+
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    // lane of the event in an EventLanes queue
+    int getLane() {
+        return mLane;
+    }
+
+    void setLane(int lane) {
+        mLane = lane;
+    }
+
 }
@@ -0,0 +1,80 @@
+package de.artcom.hsm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Reusable batch of events for {@link StateMachine#handleEvents(EventBatch)}. Events are stored
+ * as parallel arrays of event types, names and payloads, so a cleared batch can be refilled
+ * without allocating.
+ */
+public class EventBatch {
+
+    private int[] mTypes;
+    private String[] mNames;
+    private Object[] mPayloads;
+    private int mSize;
+
+    public EventBatch() {
+        this(16);
+    }
+
+    public EventBatch(int capacity) {
+        mTypes = new int[capacity];
+        mNames = new String[capacity];
+        mPayloads = new Object[capacity];
+    }
+
+    public EventBatch add(String eventName) {
+        return add(EventTypes.lookup(eventName), eventName, null);
+    }
+
+    public EventBatch add(String eventName, Map<String, Object> payload) {
+        return add(EventTypes.lookup(eventName), eventName, payload);
+    }
+
+    public EventBatch add(int eventType) {
+        return add(eventType, EventTypes.nameOf(eventType), null);
+    }
+
+    public EventBatch add(int eventType, Map<String, Object> payload) {
+        return add(eventType, EventTypes.nameOf(eventType), payload);
+    }
+
+    private EventBatch add(int eventType, String eventName, Map<String, Object> payload) {
+        if (mSize == mTypes.length) {
+            int capacity = Math.max(16, mSize * 2);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mNames = Arrays.copyOf(mNames, capacity);
+            mPayloads = Arrays.copyOf(mPayloads, capacity);
+        }
+        mTypes[mSize] = eventType;
+        mNames[mSize] = eventName;
+        mPayloads[mSize] = payload;
+        mSize++;
+        return this;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mNames, 0, mSize, null);
+        Arrays.fill(mPayloads, 0, mSize, null);
+        mSize = 0;
+    }
+
+    int getType(int index) {
+        return mTypes[index];
+    }
+
+    String getName(int index) {
+        return mNames[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> getPayload(int index) {
+        return (Map<String, Object>) mPayloads[index];
+    }
+}
@@ -0,0 +1,12 @@
+package de.artcom.hsm;
+
+import java.util.Map;
+
+/**
+ * Guard which also sees the name of the event, so one guard can be shared by the handlers of
+ * several events.
+ */
+public interface EventGuard {
+
+    public boolean evaluate(String eventName, Map<String, Object> payload);
+}
@@ -0,0 +1,270 @@
+package de.artcom.hsm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the events handled by a {@link StateMachineInstance}. Every event submitted to the
+ * instance from outside of its actions is appended to a memory-mapped journal before it is
+ * handled, and every {@code snapshotInterval} events the configuration of the instance is written
+ * to a snapshot file and the journal is started over. Timeout events are not journaled, a
+ * snapshot is written after every timeout which was handled instead. {@link #open(StateMachineInstance)} loads
+ * the latest snapshot and replays the journal written after it. Serializable payload values are
+ * deserialized when the files are read, so the directory must only be writable by trusted code.
+ */
+public class EventJournal implements Closeable {
+
+    public enum SyncPolicy {
+        /** leave writing the journal to disk to the operating system */
+        NEVER,
+        /** force the journal to disk when a snapshot is taken */
+        ON_SNAPSHOT,
+        /** force the journal to disk after every event */
+        ALWAYS
+    }
+
+    static final String JOURNAL_FILE = "journal";
+    static final String SNAPSHOT_FILE = "snapshot";
+
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    // length, checksum and sequence number
+    private static final int RECORD_HEADER = 4 + 4 + 8;
+    private static final long SNAPSHOT_RETRY_NANOS = 1000000;
+
+    private final File mDirectory;
+    private final SyncPolicy mSyncPolicy;
+    private final int mSnapshotInterval;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private StateMachineInstance mInstance;
+    private long mSequence;
+    private int mEventsSinceSnapshot;
+
+    public EventJournal(File directory, SyncPolicy syncPolicy, int snapshotInterval) {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive: " + snapshotInterval);
+        }
+        mDirectory = directory;
+        mSyncPolicy = syncPolicy;
+        mSnapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Brings the instance back to the state it had when the journal was last written and
+     * journals its events from now on. Without a snapshot the instance is initialized first. The
+     * actions of replayed events are run again. Use this instead of {@code init()}.
+     */
+    public synchronized void open(StateMachineInstance instance) throws IOException {
+        if (mInstance != null) {
+            throw new IllegalStateException("Journal in " + mDirectory + " is already open");
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + mDirectory);
+        }
+        File snapshotFile = new File(mDirectory, SNAPSHOT_FILE);
+        long snapshotSequence = 0;
+        if (snapshotFile.exists()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(snapshotFile.toPath())));
+            snapshotSequence = in.readLong();
+            byte[] snapshot = new byte[in.available()];
+            in.readFully(snapshot);
+            instance.restore(snapshot);
+        } else {
+            instance.init();
+        }
+        mSequence = snapshotSequence;
+        mFile = new RandomAccessFile(new File(mDirectory, JOURNAL_FILE), "rw");
+        map(Math.max(INITIAL_CAPACITY, mFile.length()));
+        replay(instance, snapshotSequence);
+        mInstance = instance;
+        // the journal is only started over once the replayed events are covered by a snapshot
+        while (!writeSnapshot()) {
+            LockSupport.parkNanos(this, SNAPSHOT_RETRY_NANOS);
+        }
+        instance.setJournal(this);
+    }
+
+    // Handles the events written after the snapshot, stops at the first incomplete record and
+    // leaves the buffer positioned behind the last complete one.
+    private void replay(StateMachineInstance instance, long snapshotSequence) throws IOException {
+        CRC32 crc = new CRC32();
+        mBuffer.position(0);
+        int end = 0;
+        while (mBuffer.remaining() >= RECORD_HEADER) {
+            int length = mBuffer.getInt();
+            int checksum = mBuffer.getInt();
+            long sequence = mBuffer.getLong();
+            if (length <= 0 || length > mBuffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            mBuffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            end = mBuffer.position();
+            if (sequence <= snapshotSequence) {
+                continue; // left over from before the last snapshot
+            }
+            Event event = SnapshotCodec.readEvent(new DataInputStream(new ByteArrayInputStream(record)));
+            instance.handleEvent(event.getName(), event.getPayload());
+            mSequence = sequence;
+        }
+        mBuffer.position(end);
+        if (mBuffer.remaining() >= 4) {
+            mBuffer.putInt(end, 0);
+        }
+    }
+
+    // Appending and queuing happen under the lock of the journal, so every journaled event is
+    // either handled or queued when a snapshot is taken and the snapshot covers all sequence
+    // numbers written so far. Events which don't fit into a bounded queue are taken back out of
+    // the journal.
+    synchronized void append(StateMachineInstance instance, Event event) {
+        if (instance != mInstance) {
+            throw new IllegalStateException("Journal in " + mDirectory + " belongs to another instance");
+        }
+        int start = mBuffer.position();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            SnapshotCodec.writeEvent(out, event);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+            ensureCapacity(RECORD_HEADER + record.length + 4);
+            mBuffer.putInt(record.length);
+            mBuffer.putInt((int) crc.getValue());
+            mBuffer.putLong(++mSequence);
+            mBuffer.put(record);
+            mBuffer.putInt(mBuffer.position(), 0);
+            if (mSyncPolicy == SyncPolicy.ALWAYS) {
+                mBuffer.force();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't append event " + event.getName() + " to journal in " + mDirectory, e);
+        }
+        boolean queued = false;
+        try {
+            queued = instance.enqueue(event);
+        } finally {
+            if (!queued) {
+                mBuffer.putInt(start, 0);
+                mBuffer.position(start);
+                mSequence--;
+            }
+        }
+        if (!queued) {
+            return;
+        }
+        if (++mEventsSinceSnapshot >= mSnapshotInterval) {
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't write snapshot to " + mDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the instance and starts the journal over. Skipped while another thread
+     * is processing events of the instance, it is taken with one of the next events instead.
+     */
+    public synchronized void snapshot() throws IOException {
+        if (mInstance == null) {
+            throw new IllegalStateException("Journal in " + mDirectory + " is not open");
+        }
+        writeSnapshot();
+    }
+
+    // false if another thread is processing events of the instance
+    synchronized boolean snapshotIfIdle(StateMachineInstance instance) {
+        if (instance != mInstance) {
+            return true; // closed
+        }
+        try {
+            return writeSnapshot();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write snapshot to " + mDirectory, e);
+        }
+    }
+
+    private boolean writeSnapshot() throws IOException {
+        byte[] snapshot = mInstance.snapshotIfIdle();
+        if (snapshot == null) {
+            return false;
+        }
+        if (mSyncPolicy != SyncPolicy.NEVER) {
+            mBuffer.force();
+        }
+        File tmpFile = new File(mDirectory, SNAPSHOT_FILE + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+        try {
+            out.setLength(0);
+            out.writeLong(mSequence);
+            out.write(snapshot);
+            if (mSyncPolicy != SyncPolicy.NEVER) {
+                out.getChannel().force(true);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), new File(mDirectory, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // records before the new position are covered by the snapshot
+        mBuffer.putInt(0, 0);
+        mBuffer.position(0);
+        mEventsSinceSnapshot = 0;
+        return true;
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (mBuffer.remaining() >= length) {
+            return;
+        }
+        int position = mBuffer.position();
+        map(Math.max(mBuffer.capacity() * 2L, position + (long) length));
+        mBuffer.position(position);
+    }
+
+    private void map(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Journal in " + mDirectory + " exceeds " + Integer.MAX_VALUE + " bytes");
+        }
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mInstance != null) {
+            mInstance.setJournal(null);
+            mInstance = null;
+        }
+        if (mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+        if (mFile != null) {
+            mFile.close();
+            mFile = null;
+        }
+    }
+}
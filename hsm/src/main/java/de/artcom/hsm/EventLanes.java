@@ -0,0 +1,157 @@
+package de.artcom.hsm;
+
+import com.google.common.collect.Iterators;
+
+import java.util.AbstractQueue;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Event queue with one FIFO lane per priority. Events are polled from the first non-empty lane,
+// so enqueuing and dequeuing take constant time. Lane 0 holds the events raised by actions when
+// they are handled first, the other lanes follow the order of EventPriority. A bounded queue
+// bounds all lanes together: a shared counter holds the number of queued events, and every lane
+// is a ring of the full capacity, so no lane overflows before the queue does. The rings are
+// created when their priority is first used. Events raised by actions are never dropped for
+// other events, so their lane is linked.
+final class EventLanes extends AbstractQueue<Event> implements BoundedEventQueue {
+
+    static final int INTERNAL = 0;
+    static final int COUNT = EventPriority.values().length + 1;
+
+    private final AtomicReferenceArray<Queue<Event>> mLanes = new AtomicReferenceArray<Queue<Event>>(COUNT);
+    // 0 if unbounded
+    private final int mRingCapacity;
+    private final int mCapacity;
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    // bounded to the capacity if it is positive
+    EventLanes(int capacity) {
+        mLanes.set(INTERNAL, new ConcurrentLinkedQueue<Event>());
+        mRingCapacity = Math.max(0, capacity);
+        mCapacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+    }
+
+    static int laneOf(EventPriority priority) {
+        return priority.ordinal() + 1;
+    }
+
+    @Override
+    public int capacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public void offerBeyondCapacity(Event event) {
+        mSize.incrementAndGet();
+        addToLane(event);
+    }
+
+    // the oldest event of the lowest lane which isn't above the lane of the event, events raised
+    // by actions are not dropped for events from outside
+    @Override
+    public Event pollOldest(Event event) {
+        for (int i = COUNT - 1; i >= Math.max(event.getLane(), INTERNAL + 1); i--) {
+            Queue<Event> lane = mLanes.get(i);
+            if (lane == null) {
+                continue;
+            }
+            Event oldest = lane instanceof EventRingBuffer ? ((EventRingBuffer) lane).pollOldest(event) : lane.poll();
+            if (oldest != null) {
+                mSize.decrementAndGet();
+                return oldest;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        int size;
+        do {
+            size = mSize.get();
+            if (size >= mCapacity) {
+                return false;
+            }
+        } while (!mSize.compareAndSet(size, size + 1));
+        addToLane(event);
+        return true;
+    }
+
+    // the lane has room for every event counted against the capacity, it only refuses events
+    // while it holds events queued beyond its capacity
+    private void addToLane(Event event) {
+        Queue<Event> lane = lane(event.getLane());
+        if (lane instanceof EventRingBuffer) {
+            ((EventRingBuffer) lane).offerBeyondCapacity(event);
+        } else {
+            lane.offer(event);
+        }
+    }
+
+    private Queue<Event> lane(int index) {
+        Queue<Event> lane = mLanes.get(index);
+        if (lane == null) {
+            mLanes.compareAndSet(index, null, mRingCapacity > 0
+                    ? new EventRingBuffer(mRingCapacity) : new ConcurrentLinkedQueue<Event>());
+            lane = mLanes.get(index);
+        }
+        return lane;
+    }
+
+    @Override
+    public Event poll() {
+        for (int i = 0; i < COUNT; i++) {
+            Queue<Event> lane = mLanes.get(i);
+            Event event = lane != null ? lane.poll() : null;
+            if (event != null) {
+                mSize.decrementAndGet();
+                return event;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Event peek() {
+        for (int i = 0; i < COUNT; i++) {
+            Queue<Event> lane = mLanes.get(i);
+            Event event = lane != null ? lane.peek() : null;
+            if (event != null) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < COUNT; i++) {
+            Queue<Event> lane = mLanes.get(i);
+            if (lane != null && !lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, mSize.get());
+    }
+
+    // in the order in which the events would be polled
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<Event> iterator() {
+        Iterator<Event>[] iterators = new Iterator[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            Queue<Event> lane = mLanes.get(i);
+            iterators[i] = lane != null ? lane.iterator() : Collections.<Event>emptyIterator();
+        }
+        return Iterators.concat(iterators);
+    }
+}
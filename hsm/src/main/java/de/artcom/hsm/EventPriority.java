@@ -0,0 +1,11 @@
+package de.artcom.hsm;
+
+/**
+ * Priority of events submitted to a state machine from outside of its actions, see
+ * {@link StateMachine#setEventPriority(String, EventPriority)}.
+ */
+public enum EventPriority {
+    HIGH,
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,37 @@
+package de.artcom.hsm;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of an event submitted with {@link StateMachine#handleEventAsync(String, java.util.Map)}.
+ */
+public class EventResult {
+
+    private final String mEventName;
+    private final boolean mHandled;
+    private final List<State> mActiveStates;
+
+    EventResult(String eventName, boolean handled, List<State> activeStates) {
+        mEventName = eventName;
+        mHandled = handled;
+        mActiveStates = Collections.unmodifiableList(activeStates);
+    }
+
+    public String getEventName() {
+        return mEventName;
+    }
+
+    public boolean isHandled() {
+        return mHandled;
+    }
+
+    public List<State> getActiveStates() {
+        return mActiveStates;
+    }
+
+    @Override
+    public String toString() {
+        return mEventName + (mHandled ? " handled: " : " unhandled: ") + mActiveStates;
+    }
+}
@@ -0,0 +1,168 @@
+package de.artcom.hsm;
+
+import com.google.common.collect.Iterators;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer multi-consumer queue on a preallocated array (D. Vyukov). Every slot
+// carries a sequence number which tells producers and consumers whether it is free or filled for
+// their position, so neither side allocates or locks. Consumers are needed on producer threads to
+// drop the oldest event. Events queued beyond the capacity spill into an unbounded queue which is
+// polled after the ring; while it holds events, offers fail, so the order of the events is kept.
+final class EventRingBuffer extends AbstractQueue<Event> implements BoundedEventQueue {
+
+    private final Event[] mEvents;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    private final ConcurrentLinkedQueue<Event> mSpill = new ConcurrentLinkedQueue<Event>();
+
+    EventRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mEvents = new Event[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    @Override
+    public int capacity() {
+        return mEvents.length;
+    }
+
+    @Override
+    public void offerBeyondCapacity(Event event) {
+        if (!offer(event)) {
+            mSpill.add(event);
+        }
+    }
+
+    @Override
+    public Event pollOldest(Event event) {
+        return pollRing();
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        if (!mSpill.isEmpty()) {
+            return false;
+        }
+        while (true) {
+            long position = mTail.get();
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mEvents[index] = event;
+                    mSequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false; // full
+            }
+        }
+    }
+
+    @Override
+    public Event poll() {
+        Event event = pollRing();
+        return event != null ? event : mSpill.poll();
+    }
+
+    private Event pollRing() {
+        while (true) {
+            long position = mHead.get();
+            int index = (int) position & mMask;
+            long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    Event event = mEvents[index];
+                    mEvents[index] = null;
+                    mSequences.lazySet(index, position + mEvents.length);
+                    return event;
+                }
+            } else if (difference < 0) {
+                return null; // empty
+            }
+        }
+    }
+
+    @Override
+    public Event peek() {
+        long position = mHead.get();
+        int index = (int) position & mMask;
+        return mSequences.get(index) == position + 1 ? mEvents[index] : mSpill.peek();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    @Override
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mEvents.length)) + mSpill.size();
+    }
+
+    // weakly consistent, only stable while no other thread polls
+    @Override
+    public Iterator<Event> iterator() {
+        return Iterators.concat(ringIterator(), mSpill.iterator());
+    }
+
+    private Iterator<Event> ringIterator() {
+        return new Iterator<Event>() {
+            private long mPosition = mHead.get();
+            private Event mNext = advance();
+
+            private Event advance() {
+                while (mPosition < mTail.get()) {
+                    int index = (int) mPosition & mMask;
+                    long position = mPosition++;
+                    if (mSequences.get(index) == position + 1) {
+                        Event event = mEvents[index];
+                        if (event != null) {
+                            return event;
+                        }
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return mNext != null;
+            }
+
+            @Override
+            public Event next() {
+                if (mNext == null) {
+                    throw new NoSuchElementException();
+                }
+                Event event = mNext;
+                mNext = advance();
+                return event;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package de.artcom.hsm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global registry which interns event names to dense integer event types.
+ * Event names are interned when a handler is added, so an event type is known
+ * to every state which can handle the event.
+ */
+public final class EventTypes {
+
+    public static final int UNKNOWN = -1;
+
+    private static final ConcurrentMap<String, Integer> TYPES = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] sNames = new String[0];
+
+    private EventTypes() {
+    }
+
+    public static int intern(String eventName) {
+        Integer eventType = TYPES.get(eventName);
+        if (eventType != null) {
+            return eventType;
+        }
+        synchronized (EventTypes.class) {
+            eventType = TYPES.get(eventName);
+            if (eventType == null) {
+                String[] names = Arrays.copyOf(sNames, sNames.length + 1);
+                eventType = names.length - 1;
+                names[eventType] = eventName;
+                sNames = names;
+                TYPES.put(eventName, eventType);
+            }
+            return eventType;
+        }
+    }
+
+    public static int lookup(String eventName) {
+        if (eventName == null) {
+            return UNKNOWN;
+        }
+        Integer eventType = TYPES.get(eventName);
+        return eventType == null ? UNKNOWN : eventType;
+    }
+
+    public static String nameOf(int eventType) {
+        String[] names = sNames;
+        if (eventType < 0 || eventType >= names.length) {
+            throw new IllegalArgumentException("Unknown event type " + eventType);
+        }
+        return names[eventType];
+    }
+
+    public static int size() {
+        return sNames.length;
+    }
+}
@@ -5,22 +5,38 @@ class Handler {
     private final State mTargetState;
     private final TransitionKind mKind;
     private Guard mGuard;
-    private Action mAction;
+    private EventGuard mEventGuard;
+    private TransitionAction mAction;
+    private StateMachine mDomain;
+    private volatile boolean mCompiled;
 
-    public Handler(State targetState, TransitionKind kind, Action action, Guard guard) {
+    public Handler(State targetState, TransitionKind kind, TransitionAction action, Guard guard) {
         mTargetState = targetState;
         mKind = kind;
         mAction = action;
         mGuard = guard;
     }
 
+    public Handler(State targetState, TransitionKind kind, TransitionAction action, EventGuard eventGuard) {
+        mTargetState = targetState;
+        mKind = kind;
+        mAction = action;
+        mEventGuard = eventGuard;
+    }
+
     public Handler(State targetState, TransitionKind kind, Guard guard) {
         mTargetState = targetState;
         mKind = kind;
         mGuard = guard;
     }
 
-    public Handler(State targetState, TransitionKind kind, Action action) {
+    public Handler(State targetState, TransitionKind kind, EventGuard eventGuard) {
+        mTargetState = targetState;
+        mKind = kind;
+        mEventGuard = eventGuard;
+    }
+
+    public Handler(State targetState, TransitionKind kind, TransitionAction action) {
         mTargetState = targetState;
         mKind = kind;
         mAction = action;
@@ -35,14 +51,21 @@ class Handler {
         if (mGuard != null) {
             return mGuard.evaluate(event.getPayload());
         }
+        if (mEventGuard != null) {
+            return mEventGuard.evaluate(event.getName(), event.getPayload());
+        }
         return true;
     }
 
+    Guard getGuard() {
+        return mGuard;
+    }
+
     public State getTargetState() {
         return mTargetState;
     }
 
-    public Action getAction() {
+    public TransitionAction getAction() {
         return mAction;
     }
 
@@ -50,4 +73,17 @@ class Handler {
         return mKind;
     }
 
+    boolean isCompiled() {
+        return mCompiled;
+    }
+
+    StateMachine getDomain() {
+        return mDomain;
+    }
+
+    void compile(StateMachine domain) {
+        mDomain = domain;
+        mCompiled = true;
+    }
+
 }
@@ -0,0 +1,58 @@
+package de.artcom.hsm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Index of the handlers of one event in one state whose guards are KeyedGuards. For every key
+// the table maps the payload value to the position of the first handler expecting it; the
+// positions of all other handlers are kept in order, so the first passing handler is found
+// with one lookup per key and only the other guards which come before it are evaluated.
+final class HandlerIndex {
+
+    private String[] mKeys = new String[0];
+    private Map<Object, Integer>[] mPositions = newTables(0);
+    private int[] mOtherPositions = new int[0];
+
+    void add(int position, Handler handler) {
+        Guard guard = handler.getGuard();
+        if (!(guard instanceof KeyedGuard)) {
+            mOtherPositions = Arrays.copyOf(mOtherPositions, mOtherPositions.length + 1);
+            mOtherPositions[mOtherPositions.length - 1] = position;
+            return;
+        }
+        KeyedGuard keyedGuard = (KeyedGuard) guard;
+        int key = Arrays.asList(mKeys).indexOf(keyedGuard.getKey());
+        if (key < 0) {
+            key = mKeys.length;
+            mKeys = Arrays.copyOf(mKeys, key + 1);
+            mKeys[key] = keyedGuard.getKey();
+            mPositions = Arrays.copyOf(mPositions, key + 1);
+            mPositions[key] = new HashMap<Object, Integer>();
+        }
+        if (!mPositions[key].containsKey(keyedGuard.getValue())) {
+            mPositions[key].put(keyedGuard.getValue(), position);
+        }
+    }
+
+    // position of the first keyed handler which passes, noMatch if none
+    int findKeyed(Map<String, Object> payload, int noMatch) {
+        int found = noMatch;
+        for (int i = 0; i < mKeys.length; i++) {
+            Integer position = mPositions[i].get(payload.get(mKeys[i]));
+            if (position != null && position < found) {
+                found = position;
+            }
+        }
+        return found;
+    }
+
+    int[] getOtherPositions() {
+        return mOtherPositions;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Integer>[] newTables(int length) {
+        return new Map[length];
+    }
+}
@@ -0,0 +1,38 @@
+package de.artcom.hsm;
+
+import java.util.Map;
+
+/**
+ * Guard which passes when the payload value of the key equals the value. States look up their
+ * keyed guards for an event in a hash table instead of evaluating them one by one, so routing an
+ * event to one of many handlers by a payload value takes constant time. Handlers with other
+ * guards keep their order relative to the keyed ones. While a {@link TransitionListener} is
+ * registered, the guards are evaluated one by one, so it is told about every rejected guard.
+ */
+public final class KeyedGuard implements Guard {
+
+    private final String mKey;
+    private final Object mValue;
+
+    public KeyedGuard(String key, Object value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key must not be null");
+        }
+        mKey = key;
+        mValue = value;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public Object getValue() {
+        return mValue;
+    }
+
+    @Override
+    public boolean evaluate(Map<String, Object> payload) {
+        Object value = payload.get(mKey);
+        return mValue == null ? value == null : mValue.equals(value);
+    }
+}
@@ -0,0 +1,21 @@
+package de.artcom.hsm;
+
+/**
+ * What a bounded event queue does with an event which doesn't fit, see
+ * {@link StateMachine#setEventQueueCapacity(int, OverflowPolicy)}. Events raised by actions while
+ * events are handled never overflow, they are queued beyond the capacity.
+ */
+public enum OverflowPolicy {
+    /**
+     * wait until the queue has room, synchronous producers handle queued events if no other thread
+     * does, asynchronous producers only wait. Rejects the event once the block timeout is up, see
+     * {@link StateMachine#setBlockTimeout(long, java.util.concurrent.TimeUnit)}
+     */
+    BLOCK,
+    /** drop the new event */
+    DROP_NEWEST,
+    /** drop the oldest queued event to make room for the new one */
+    DROP_OLDEST,
+    /** throw a {@link java.util.concurrent.RejectedExecutionException} to the producer */
+    REJECT
+}
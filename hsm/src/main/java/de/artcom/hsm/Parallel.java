@@ -2,13 +2,16 @@ package de.artcom.hsm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class Parallel extends State<Parallel> {
 
-    private List<StateMachine> mStateMachineList;
+    private StateMachine[] mStateMachines;
+    private ForkJoinPool mPool;
 
     public Parallel(String id, StateMachine... stateMachines) {
         super(id);
@@ -16,54 +19,89 @@ public class Parallel extends State<Parallel> {
     }
 
     public void setStateMachineList(List<StateMachine> stateMachineList) {
-        mStateMachineList = stateMachineList;
-        for (StateMachine stateMachine : mStateMachineList) {
+        mStateMachines = stateMachineList.toArray(new StateMachine[stateMachineList.size()]);
+        for (StateMachine stateMachine : mStateMachines) {
             stateMachine.setContainer(this);
         }
     }
 
+    /**
+     * Enters, exits and dispatches events to the regions of this state concurrently on the given
+     * pool. All regions have finished before the event is completed. Regions must be independent:
+     * their actions run in parallel and must only target states within their own region. Every
+     * region sees its own copy of the event payload, changes made by the actions of one region are
+     * not visible to the others. Transition listeners are called from the pool threads as well,
+     * concurrently with each other, and metrics are recorded from them. Like handlers, it has to
+     * be set before the model is in use.
+     */
+    public Parallel concurrently(ForkJoinPool pool) {
+        // the dispatch chains of the model depend on it
+        if (mOwner != null && mOwner.isFrozen()) {
+            throw new IllegalStateException(getId() + " Can't run regions concurrently once the model is in use.");
+        }
+        mPool = pool;
+        return this;
+    }
+
     @Override
     protected Parallel getThis() {
         return this;
     }
 
     @Override
-    void enter(State prev, State next, Map<String, Object> payload) {
-        super.enter(prev, next, payload);
-        for (StateMachine stateMachine : mStateMachineList) {
-            stateMachine.enterState(prev, next, payload);
+    void enter(StateMachineInstance instance, State prev, State next, Map<String, Object> payload) {
+        super.enter(instance, prev, next, payload);
+        if (isConcurrent()) {
+            invoke(new RegionTask(instance, mStateMachines, 0, mStateMachines.length, RegionTask.ENTER, prev, next, payload, null));
+            return;
+        }
+        for (StateMachine stateMachine : mStateMachines) {
+            stateMachine.enterState(instance, prev, next, payload);
         }
     }
 
     @Override
-    void exit(State prev, State next, Map<String, Object> payload) {
-        super.exit(prev, next, payload);
-        for (StateMachine stateMachine : mStateMachineList) {
-            stateMachine.teardown(payload);
+    void exit(StateMachineInstance instance, State prev, State next, Map<String, Object> payload) {
+        super.exit(instance, prev, next, payload);
+        if (isConcurrent()) {
+            invoke(new RegionTask(instance, mStateMachines, 0, mStateMachines.length, RegionTask.EXIT, prev, next, payload, null));
+            return;
+        }
+        for (StateMachine stateMachine : mStateMachines) {
+            stateMachine.teardown(instance, payload);
         }
     }
 
     @Override
-    boolean handleWithOverride(Event event) {
+    boolean handleWithOverride(StateMachineInstance instance, Event event) {
         boolean isHandled = false;
-        for (StateMachine stateMachine : mStateMachineList) {
-            if (stateMachine.handleWithOverride(event)) {
-                isHandled = true;
+        if (isConcurrent()) {
+            isHandled = invoke(new RegionTask(instance, mStateMachines, 0, mStateMachines.length, RegionTask.HANDLE, null, null, null, event));
+        } else {
+            for (StateMachine stateMachine : mStateMachines) {
+                if (stateMachine.handleWithOverride(instance, event)) {
+                    isHandled = true;
+                }
             }
         }
         if (!isHandled) {
-            return super.handleWithOverride(event);
+            return super.handleWithOverride(instance, event);
         }
         return true;
     }
 
     @Override
     public String toString() {
+        return toString(null);
+    }
+
+    @Override
+    String toString(StateMachineInstance instance) {
         StringBuilder sb = new StringBuilder();
         sb.append(getId());
         sb.append("/(");
-        for (StateMachine stateMachine : mStateMachineList) {
-            sb.append(stateMachine.toString());
+        for (StateMachine stateMachine : mStateMachines) {
+            sb.append(instance != null ? stateMachine.toString(instance) : stateMachine.toString());
             sb.append('|');
         }
         sb.deleteCharAt(sb.length() - 1);
@@ -73,25 +111,107 @@ public class Parallel extends State<Parallel> {
 
     @Override
     void addParent(StateMachine stateMachine) {
-        for (StateMachine machine : mStateMachineList) {
+        for (StateMachine machine : mStateMachines) {
             machine.addParent(stateMachine);
         }
     }
 
     @Override
-    Collection<? extends State> getDescendantStates() {
-        List<State> descendantStates = new ArrayList<State>();
-        for (StateMachine stateMachine : mStateMachineList) {
-            descendantStates.addAll(stateMachine.getDescendantStates());
+    void indexSubMachines(List<StateMachine> stateMachines, List<State> states) {
+        for (StateMachine stateMachine : mStateMachines) {
+            stateMachine.index(stateMachines, states);
         }
-        return descendantStates;
     }
 
     public List<State> getAllActiveStates() {
         List<State> stateList = new ArrayList<State>();
-        for(StateMachine stateMachine : mStateMachineList) {
+        for(StateMachine stateMachine : mStateMachines) {
             stateList.addAll(stateMachine.getAllActiveStates());
         }
         return stateList;
     }
+
+    @Override
+    List<State> getAllActiveStates(StateMachineInstance instance) {
+        List<State> stateList = new ArrayList<State>();
+        for(StateMachine stateMachine : mStateMachines) {
+            stateList.addAll(stateMachine.getAllActiveStates(instance));
+        }
+        return stateList;
+    }
+
+    boolean isConcurrent() {
+        return mPool != null && mStateMachines.length > 1;
+    }
+
+    private boolean invoke(RegionTask task) {
+        if (ForkJoinTask.getPool() == mPool) {
+            return task.invoke();
+        }
+        return mPool.invoke(task);
+    }
+
+    private static class RegionTask extends RecursiveTask<Boolean> {
+
+        static final int ENTER = 0;
+        static final int EXIT = 1;
+        static final int HANDLE = 2;
+
+        private final StateMachineInstance mInstance;
+        private final StateMachine[] mStateMachines;
+        private final int mFrom;
+        private final int mTo;
+        private final int mOperation;
+        private final State mPrev;
+        private final State mNext;
+        private final Map<String, Object> mPayload;
+        private final Event mEvent;
+
+        RegionTask(StateMachineInstance instance, StateMachine[] stateMachines, int from, int to, int operation,
+                   State prev, State next, Map<String, Object> payload, Event event) {
+            mInstance = instance;
+            mStateMachines = stateMachines;
+            mFrom = from;
+            mTo = to;
+            mOperation = operation;
+            mPrev = prev;
+            mNext = next;
+            mPayload = payload;
+            mEvent = event;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (mTo - mFrom == 1) {
+                return run(mStateMachines[mFrom]);
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            RegionTask left = new RegionTask(mInstance, mStateMachines, mFrom, middle, mOperation, mPrev, mNext, mPayload, mEvent);
+            RegionTask right = new RegionTask(mInstance, mStateMachines, middle, mTo, mOperation, mPrev, mNext, mPayload, mEvent);
+            left.fork();
+            boolean rightResult = right.compute();
+            return left.join() | rightResult;
+        }
+
+        // regions run on pool threads, which have to see the instance of the event as current
+        private boolean run(StateMachine stateMachine) {
+            StateMachineInstance previous = StateMachineInstance.swapCurrent(mInstance);
+            try {
+                switch (mOperation) {
+                    case ENTER:
+                        stateMachine.enterState(mInstance, mPrev, mNext, StateMachineInstance.copyPayload(mPayload));
+                        return true;
+                    case EXIT:
+                        stateMachine.teardown(mInstance, StateMachineInstance.copyPayload(mPayload));
+                        return true;
+                    default:
+                        Event event = new Event(mEvent.getType(), mEvent.getName(),
+                                StateMachineInstance.copyPayload(mEvent.getPayload()));
+                        return stateMachine.handleWithOverride(mInstance, event);
+                }
+            } finally {
+                StateMachineInstance.swapCurrent(previous);
+            }
+        }
+    }
 }
@@ -0,0 +1,436 @@
+package de.artcom.hsm;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Event payload with primitive slots. Values are addressed by keys declared through
+ * {@link #key(String)}, long, double, int and boolean values are stored without boxing, and the
+ * storage is kept when the payload is cleared, so a producer can reuse one payload for all its
+ * events. The payload is also a {@code Map<String, Object>}: it can be passed wherever a map is
+ * expected and legacy guards and actions see the boxed values. Guards and actions read the
+ * typed values through {@link #of(Map)}. Values put under keys which were not declared are kept
+ * boxed in a map of their own.
+ * <p>
+ * {@link #copy()} takes constant time: the copy shares the storage of the payload until one of
+ * them is changed, which then copies the storage first. Values which are not stored in primitive
+ * slots are shared, not copied, and should not be changed.
+ */
+public final class Payload extends AbstractMap<String, Object> {
+
+    private static final byte NONE = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte INT = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte OBJECT = 5;
+
+    private byte[] mKinds = new byte[0];
+    private long[] mValues = new long[0];
+    private Object[] mObjects;
+    // the keys in the order in which they were set
+    private int[] mKeys = new int[4];
+    private int mSize;
+    // values of keys which were not declared, null until there are any
+    private Map<String, Object> mExtras;
+    // the storage may be shared with copies and has to be copied before it is changed
+    private boolean mShared;
+
+    public Payload() {
+    }
+
+    /**
+     * The map as a payload: the map itself if it is one, a copy otherwise.
+     */
+    public static Payload of(Map<String, Object> map) {
+        if (map instanceof Payload) {
+            return (Payload) map;
+        }
+        Payload payload = new Payload();
+        if (map != null) {
+            payload.putAll(map);
+        }
+        return payload;
+    }
+
+    // declares a key, keys are never released, so they should be constants
+    public static int key(String name) {
+        return PayloadKeys.intern(name);
+    }
+
+    public Payload setLong(int key, long value) {
+        setSlot(key, LONG, value);
+        return this;
+    }
+
+    public Payload setDouble(int key, double value) {
+        setSlot(key, DOUBLE, Double.doubleToRawLongBits(value));
+        return this;
+    }
+
+    public Payload setInt(int key, int value) {
+        setSlot(key, INT, value);
+        return this;
+    }
+
+    public Payload setBoolean(int key, boolean value) {
+        setSlot(key, BOOLEAN, value ? 1 : 0);
+        return this;
+    }
+
+    public Payload setObject(int key, Object value) {
+        setSlot(key, OBJECT, 0);
+        if (mObjects == null || mObjects.length < mKinds.length) {
+            mObjects = mObjects == null ? new Object[mKinds.length] : Arrays.copyOf(mObjects, mKinds.length);
+        }
+        mObjects[key] = value;
+        return this;
+    }
+
+    public boolean has(int key) {
+        return key >= 0 && key < mKinds.length && mKinds[key] != NONE;
+    }
+
+    /**
+     * Numeric values are converted, missing and null values read as 0.
+     *
+     * @throws IllegalArgumentException if the value is an object which is not a number
+     */
+    public long getLong(int key) {
+        switch (kindOf(key)) {
+            case LONG:
+            case INT:
+            case BOOLEAN:
+                return mValues[key];
+            case DOUBLE:
+                return (long) Double.longBitsToDouble(mValues[key]);
+            case OBJECT:
+                return number(key).longValue();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Numeric values are converted, missing and null values read as 0.
+     *
+     * @throws IllegalArgumentException if the value is an object which is not a number
+     */
+    public double getDouble(int key) {
+        switch (kindOf(key)) {
+            case DOUBLE:
+                return Double.longBitsToDouble(mValues[key]);
+            case LONG:
+            case INT:
+            case BOOLEAN:
+                return mValues[key];
+            case OBJECT:
+                return number(key).doubleValue();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @see #getLong(int)
+     */
+    public int getInt(int key) {
+        return (int) getLong(key);
+    }
+
+    /**
+     * Numbers other than 0 read as true, missing and null values as false.
+     *
+     * @throws IllegalArgumentException if the value is an object which is neither a boolean nor a
+     * number
+     */
+    public boolean getBoolean(int key) {
+        switch (kindOf(key)) {
+            case OBJECT:
+                Object value = mObjects[key];
+                if (value instanceof Boolean) {
+                    return (Boolean) value;
+                }
+                return number(key).longValue() != 0;
+            case NONE:
+                return false;
+            default:
+                return getLong(key) != 0;
+        }
+    }
+
+    public Object getObject(int key) {
+        switch (kindOf(key)) {
+            case LONG:
+                return mValues[key];
+            case DOUBLE:
+                return Double.longBitsToDouble(mValues[key]);
+            case INT:
+                return (int) mValues[key];
+            case BOOLEAN:
+                return mValues[key] != 0;
+            case OBJECT:
+                return mObjects[key];
+            default:
+                return null;
+        }
+    }
+
+    public Payload copy() {
+        Payload copy = new Payload();
+        copy.mKinds = mKinds;
+        copy.mValues = mValues;
+        copy.mObjects = mObjects;
+        copy.mKeys = mKeys;
+        copy.mSize = mSize;
+        copy.mExtras = mExtras;
+        copy.mShared = true;
+        mShared = true;
+        return copy;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int keyId = PayloadKeys.lookup((String) key);
+        if (has(keyId)) {
+            return getObject(keyId);
+        }
+        return mExtras != null ? mExtras.get(key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        return has(PayloadKeys.lookup((String) key)) || mExtras != null && mExtras.containsKey(key);
+    }
+
+    // boxed numbers and booleans of declared keys are stored in primitive slots
+    @Override
+    public Object put(String key, Object value) {
+        int keyId = PayloadKeys.lookup(key);
+        if (keyId == PayloadKeys.UNKNOWN || mExtras != null && mExtras.containsKey(key)) {
+            if (mShared) {
+                own();
+            }
+            if (mExtras == null) {
+                mExtras = new LinkedHashMap<String, Object>();
+            }
+            return mExtras.put(key, value);
+        }
+        Object previous = getObject(keyId);
+        if (value instanceof Long) {
+            setLong(keyId, (Long) value);
+        } else if (value instanceof Double) {
+            setDouble(keyId, (Double) value);
+        } else if (value instanceof Integer) {
+            setInt(keyId, (Integer) value);
+        } else if (value instanceof Boolean) {
+            setBoolean(keyId, (Boolean) value);
+        } else {
+            setObject(keyId, value);
+        }
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int keyId = PayloadKeys.lookup((String) key);
+        if (!has(keyId)) {
+            if (mExtras == null || !mExtras.containsKey(key)) {
+                return null;
+            }
+            if (mShared) {
+                own();
+            }
+            return mExtras.remove(key);
+        }
+        Object previous = getObject(keyId);
+        removeKey(keyId);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return mExtras != null ? mSize + mExtras.size() : mSize;
+    }
+
+    // keeps the storage for the next values
+    @Override
+    public void clear() {
+        if (mShared) {
+            mKinds = new byte[mKinds.length];
+            mValues = new long[mValues.length];
+            mObjects = mObjects == null ? null : new Object[mObjects.length];
+            mKeys = new int[mKeys.length];
+            mSize = 0;
+            mExtras = null;
+            mShared = false;
+            return;
+        }
+        if (mExtras != null) {
+            mExtras.clear();
+        }
+        for (int i = 0; i < mSize; i++) {
+            int key = mKeys[i];
+            mKinds[key] = NONE;
+            if (mObjects != null && key < mObjects.length) {
+                mObjects[key] = null;
+            }
+        }
+        mSize = 0;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            // the slots in the order in which they were set, then the other values
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int mIndex;
+                    private int mLastKey = -1;
+                    private Iterator<Entry<String, Object>> mExtrasIterator;
+                    private Entry<String, Object> mLastExtra;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mIndex < mSize || mExtras != null && extras().hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (mIndex < mSize) {
+                            mLastKey = mKeys[mIndex++];
+                            return new SimpleImmutableEntry<String, Object>(PayloadKeys.nameOf(mLastKey), getObject(mLastKey));
+                        }
+                        if (mExtras == null) {
+                            throw new NoSuchElementException();
+                        }
+                        mLastKey = -1;
+                        mLastExtra = extras().next();
+                        return new SimpleImmutableEntry<String, Object>(mLastExtra);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (mLastExtra != null) {
+                            removeExtra();
+                            return;
+                        }
+                        if (mLastKey < 0) {
+                            throw new IllegalStateException();
+                        }
+                        removeKey(mLastKey);
+                        mIndex--;
+                        mLastKey = -1;
+                    }
+
+                    private Iterator<Entry<String, Object>> extras() {
+                        if (mExtrasIterator == null) {
+                            mExtrasIterator = mExtras.entrySet().iterator();
+                        }
+                        return mExtrasIterator;
+                    }
+
+                    // a shared side map is copied first, the iterator continues on the copy
+                    private void removeExtra() {
+                        if (mShared) {
+                            own();
+                            mExtrasIterator = mExtras.entrySet().iterator();
+                            while (!mExtrasIterator.next().getKey().equals(mLastExtra.getKey())) {
+                                // skip the entries already returned
+                            }
+                        }
+                        mExtrasIterator.remove();
+                        mLastExtra = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return Payload.this.size();
+            }
+        };
+    }
+
+    private Number number(int key) {
+        Object value = mObjects[key];
+        if (value == null) {
+            return 0;
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("Payload value of " + PayloadKeys.nameOf(key)
+                    + " is not a number: " + value.getClass().getName());
+        }
+        return (Number) value;
+    }
+
+    private byte kindOf(int key) {
+        return key >= 0 && key < mKinds.length ? mKinds[key] : NONE;
+    }
+
+    private void setSlot(int key, byte kind, long value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Unknown payload key " + key);
+        }
+        if (mShared) {
+            own();
+        }
+        if (key >= mKinds.length) {
+            int length = Math.max(key + 1, mKinds.length * 2);
+            mKinds = Arrays.copyOf(mKinds, length);
+            mValues = Arrays.copyOf(mValues, length);
+        }
+        if (mKinds[key] == NONE) {
+            if (mSize == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            }
+            mKeys[mSize++] = key;
+        } else if (mKinds[key] == OBJECT && kind != OBJECT) {
+            mObjects[key] = null;
+        }
+        mKinds[key] = kind;
+        mValues[key] = value;
+    }
+
+    private void own() {
+        mKinds = mKinds.clone();
+        mValues = mValues.clone();
+        mObjects = mObjects == null ? null : mObjects.clone();
+        mKeys = mKeys.clone();
+        mExtras = mExtras == null ? null : new LinkedHashMap<String, Object>(mExtras);
+        mShared = false;
+    }
+
+    private void removeKey(int key) {
+        if (mShared) {
+            own();
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mKeys[i] == key) {
+                System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+                mSize--;
+                break;
+            }
+        }
+        mKinds[key] = NONE;
+        if (mObjects != null && key < mObjects.length) {
+            mObjects[key] = null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.artcom.hsm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global registry which interns payload keys to dense integer key ids, which index the slots of
+ * a {@link Payload}. Only keys declared through {@link Payload#key(String)} are interned, the
+ * registry is never cleared.
+ */
+public final class PayloadKeys {
+
+    public static final int UNKNOWN = -1;
+
+    private static final ConcurrentMap<String, Integer> KEYS = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] sNames = new String[0];
+
+    private PayloadKeys() {
+    }
+
+    public static int intern(String key) {
+        Integer keyId = KEYS.get(key);
+        if (keyId != null) {
+            return keyId;
+        }
+        synchronized (PayloadKeys.class) {
+            keyId = KEYS.get(key);
+            if (keyId == null) {
+                String[] names = Arrays.copyOf(sNames, sNames.length + 1);
+                keyId = names.length - 1;
+                names[keyId] = key;
+                sNames = names;
+                KEYS.put(key, keyId);
+            }
+            return keyId;
+        }
+    }
+
+    public static int lookup(String key) {
+        if (key == null) {
+            return UNKNOWN;
+        }
+        Integer keyId = KEYS.get(key);
+        return keyId == null ? UNKNOWN : keyId;
+    }
+
+    public static String nameOf(int keyId) {
+        String[] names = sNames;
+        if (keyId < 0 || keyId >= names.length) {
+            throw new IllegalArgumentException("Unknown payload key " + keyId);
+        }
+        return names[keyId];
+    }
+
+    public static int size() {
+        return sNames.length;
+    }
+}
@@ -0,0 +1,218 @@
+package de.artcom.hsm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary form of an instance: a version byte, the number of state machines, the position of the
+// active state of every state machine (0 for none) and the queued events with their payloads.
+// Counts and positions are written as var ints, so a small configuration takes a few bytes.
+// Serializable payload values are read with Java serialization, which can run code of any class
+// on the class path, so snapshots and journals must only be read from trusted sources.
+final class SnapshotCodec {
+
+    static final int VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+    private static final int BOOLEAN = 5;
+    private static final int SERIALIZED = 6;
+
+    // an event name and a payload size, a payload key and a value type
+    private static final int MIN_EVENT_BYTES = 2 + 1;
+    private static final int MIN_ENTRY_BYTES = 2 + 1;
+
+    private SnapshotCodec() {
+    }
+
+    static byte[] write(StateMachine[] stateMachines, State[] activeStates, Collection<Event> events) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + stateMachines.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            writeVarInt(out, stateMachines.length);
+            for (int i = 0; i < stateMachines.length; i++) {
+                State state = activeStates[i];
+                writeVarInt(out, state == null ? 0 : stateMachines[i].indexOf(state) + 1);
+            }
+            writeVarInt(out, events.size());
+            for (Event event : events) {
+                writeEvent(out, event);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write snapshot", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // fills the active states and returns the queued events
+    static List<Event> read(byte[] snapshot, StateMachine[] stateMachines, State[] activeStates) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        try {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported snapshot version " + version);
+            }
+            int machineCount = readVarInt(in);
+            if (machineCount != stateMachines.length) {
+                throw new IllegalArgumentException("Snapshot of " + machineCount
+                        + " state machines doesn't match model with " + stateMachines.length);
+            }
+            for (int i = 0; i < machineCount; i++) {
+                int position = readVarInt(in);
+                if (position < 0 || position > stateMachines[i].getStateCount()) {
+                    throw new IllegalArgumentException("Snapshot contains unknown state " + position);
+                }
+                activeStates[i] = position == 0 ? null : stateMachines[i].getState(position - 1);
+            }
+            int eventCount = readLength(in, MIN_EVENT_BYTES);
+            List<Event> events = new ArrayList<Event>(eventCount);
+            for (int i = 0; i < eventCount; i++) {
+                events.add(readEvent(in));
+            }
+            return events;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read snapshot", e);
+        }
+    }
+
+    static void writeEvent(DataOutputStream out, Event event) throws IOException {
+        out.writeUTF(event.getName());
+        writePayload(out, event.getPayload());
+    }
+
+    static Event readEvent(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        return new Event(EventTypes.lookup(name), name, readPayload(in));
+    }
+
+    private static void writePayload(DataOutputStream out, Map<String, Object> payload) throws IOException {
+        writeVarInt(out, payload.size());
+        for (Map.Entry<String, Object> entry : payload.entrySet()) {
+            out.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                out.writeUTF((String) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Serializable) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+                objectOut.writeObject(value);
+                objectOut.close();
+                out.writeByte(SERIALIZED);
+                writeVarInt(out, bytes.size());
+                bytes.writeTo(out);
+            } else {
+                throw new IllegalStateException("Can't write payload value '" + entry.getKey()
+                        + "' of " + value.getClass() + " to snapshot");
+            }
+        }
+    }
+
+    private static Map<String, Object> readPayload(DataInputStream in) throws IOException {
+        int size = readLength(in, MIN_ENTRY_BYTES);
+        Map<String, Object> payload = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NULL:
+                    payload.put(key, null);
+                    break;
+                case STRING:
+                    payload.put(key, in.readUTF());
+                    break;
+                case INTEGER:
+                    payload.put(key, in.readInt());
+                    break;
+                case LONG:
+                    payload.put(key, in.readLong());
+                    break;
+                case DOUBLE:
+                    payload.put(key, in.readDouble());
+                    break;
+                case BOOLEAN:
+                    payload.put(key, in.readBoolean());
+                    break;
+                case SERIALIZED:
+                    byte[] bytes = new byte[readLength(in, 1)];
+                    in.readFully(bytes);
+                    ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                    try {
+                        payload.put(key, objectIn.readObject());
+                    } catch (ClassNotFoundException e) {
+                        throw new IllegalArgumentException("Can't read payload value '" + key + "'", e);
+                    } finally {
+                        objectIn.close();
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown payload value type " + tag);
+            }
+        }
+        return payload;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // Counts and lengths are checked against the remaining input before anything is allocated
+    // for them, so a corrupt snapshot can't exhaust the memory.
+    private static int readLength(DataInputStream in, int minBytesPerElement) throws IOException {
+        int length = readVarInt(in);
+        int remaining = in.available();
+        if (length < 0 || (long) length * minBytesPerElement > remaining) {
+            throw new IllegalArgumentException("Snapshot length " + length + " exceeds the remaining "
+                    + remaining + " bytes");
+        }
+        return length;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed var int in snapshot");
+    }
+}
@@ -1,32 +1,38 @@
 package de.artcom.hsm;
 
-import com.google.common.collect.LinkedListMultimap;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class State<T extends State<T>> {
 
     final static Logger LOGGER = LoggerFactory.getLogger(State.class);
 
     private final String mId;
-    private Action mOnEnterAction;
-    private Action mOnExitAction;
-    private final LinkedListMultimap<String, Handler> mHandlers;
+    private TransitionAction mOnEnterAction;
+    private TransitionAction mOnExitAction;
+    private Handler[][] mHandlers = new Handler[0][];
+    // per event type, only for events with handlers guarded by a KeyedGuard
+    private HandlerIndex[] mHandlerIndexes = new HandlerIndex[0];
+    private boolean[] mDeferredEvents = new boolean[0];
+    private long[] mTimeoutDelays;
+    private int[] mTimeoutEventTypes;
     protected StateMachine mOwner;
+    // depth-first number of the state and of its last descendant within the model
+    private int mIndex = -1;
+    private int mLastDescendantIndex = -1;
 
     protected T getThis() {
         return (T) this;
     }
 
     public State(String id) {
-        mHandlers = LinkedListMultimap.create();
         mId = id;
     }
 
@@ -40,26 +46,153 @@ public class State<T extends State<T>> {
         return getThis();
     }
 
-    public T addHandler(String eventName, State target, TransitionKind kind, Guard guard) {
-        mHandlers.put(eventName, new Handler(target, kind, guard));
+    public T onEnter(TransitionAction onEnterAction) {
+        mOnEnterAction = onEnterAction;
         return getThis();
     }
 
-    public T addHandler(String eventName, State target, TransitionKind kind, Action action) {
-        mHandlers.put(eventName, new Handler(target, kind, action));
+    public T onExit(TransitionAction onExitAction) {
+        mOnExitAction = onExitAction;
         return getThis();
     }
 
+    public T addHandler(String eventName, State target, TransitionKind kind, Guard guard) {
+        return addHandler(eventName, new Handler(target, kind, guard));
+    }
+
+    public T addHandler(String eventName, State target, TransitionKind kind, Action action) {
+        return addHandler(eventName, new Handler(target, kind, action));
+    }
+
     public T addHandler(String eventName, State target, TransitionKind kind, Action action, Guard guard) {
-        mHandlers.put(eventName, new Handler(target, kind, action, guard));
-        return getThis();
+        return addHandler(eventName, new Handler(target, kind, action, guard));
+    }
+
+    public T addHandler(String eventName, State target, TransitionKind kind, EventGuard guard) {
+        return addHandler(eventName, new Handler(target, kind, guard));
+    }
+
+    // named apart from addHandler, a TransitionAction and a Guard would be ambiguous for lambdas
+    public T addTransition(String eventName, State target, TransitionKind kind, TransitionAction action) {
+        return addHandler(eventName, new Handler(target, kind, action));
+    }
+
+    public T addTransition(String eventName, State target, TransitionKind kind, TransitionAction action, EventGuard guard) {
+        return addHandler(eventName, new Handler(target, kind, action, guard));
     }
 
     public T addHandler(String eventName, State target, TransitionKind kind) {
-        mHandlers.put(eventName, new Handler(target, kind));
+        return addHandler(eventName, new Handler(target, kind));
+    }
+
+    private T addHandler(String eventName, Handler handler) {
+        checkNotFrozen(eventName);
+        int eventType = EventTypes.intern(eventName);
+        if (eventType >= mHandlers.length) {
+            mHandlers = Arrays.copyOf(mHandlers, eventType + 1);
+        }
+        Handler[] handlers = mHandlers[eventType];
+        if (handlers == null) {
+            handlers = new Handler[1];
+        } else {
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+        }
+        handlers[handlers.length - 1] = handler;
+        mHandlers[eventType] = handlers;
+        indexHandler(eventType, handlers);
+        return getThis();
+    }
+
+    private void indexHandler(int eventType, Handler[] handlers) {
+        HandlerIndex index = eventType < mHandlerIndexes.length ? mHandlerIndexes[eventType] : null;
+        int position = handlers.length - 1;
+        if (index != null) {
+            index.add(position, handlers[position]);
+        } else if (handlers[position].getGuard() instanceof KeyedGuard) {
+            index = new HandlerIndex();
+            for (int i = 0; i <= position; i++) {
+                index.add(i, handlers[i]);
+            }
+            if (eventType >= mHandlerIndexes.length) {
+                mHandlerIndexes = Arrays.copyOf(mHandlerIndexes, eventType + 1);
+            }
+            mHandlerIndexes[eventType] = index;
+        }
+    }
+
+    /**
+     * Defers the event while this state is active: when no active state handles it, the event
+     * is kept and handled again once the state machine reaches a configuration which doesn't
+     * defer it.
+     */
+    public T defer(String eventName) {
+        checkNotFrozen(eventName);
+        int eventType = EventTypes.intern(eventName);
+        if (eventType >= mDeferredEvents.length) {
+            mDeferredEvents = Arrays.copyOf(mDeferredEvents, eventType + 1);
+        }
+        mDeferredEvents[eventType] = true;
+        return getThis();
+    }
+
+    // the event alphabet and the dispatch chains of a model are computed when it is frozen
+    private void checkNotFrozen(String eventName) {
+        if (mOwner != null && mOwner.isFrozen()) {
+            throw new IllegalStateException(mId + " Can't add " + eventName + " once the model is in use.");
+        }
+    }
+
+    boolean hasHandlers(int eventType) {
+        return eventType >= 0 && eventType < mHandlers.length && mHandlers[eventType] != null;
+    }
+
+    // adds the event types this state handles or defers
+    void collectEventTypes(BitSet eventTypes) {
+        for (int i = 0; i < mHandlers.length; i++) {
+            if (mHandlers[i] != null) {
+                eventTypes.set(i);
+            }
+        }
+        for (int i = 0; i < mDeferredEvents.length; i++) {
+            if (mDeferredEvents[i]) {
+                eventTypes.set(i);
+            }
+        }
+    }
+
+    boolean defers(int eventType) {
+        return eventType >= 0 && eventType < mDeferredEvents.length && mDeferredEvents[eventType];
+    }
+
+    /**
+     * Raises the event once the state has been active for the given time. The timeout is armed
+     * when the state is entered and cancelled when it is exited.
+     */
+    public T addTimeout(long delay, TimeUnit unit, String eventName) {
+        checkNotFrozen(eventName);
+        int eventType = EventTypes.intern(eventName);
+        if (mTimeoutDelays == null) {
+            mTimeoutDelays = new long[1];
+            mTimeoutEventTypes = new int[1];
+        } else {
+            mTimeoutDelays = Arrays.copyOf(mTimeoutDelays, mTimeoutDelays.length + 1);
+            mTimeoutEventTypes = Arrays.copyOf(mTimeoutEventTypes, mTimeoutEventTypes.length + 1);
+        }
+        mTimeoutDelays[mTimeoutDelays.length - 1] = unit.toNanos(delay);
+        mTimeoutEventTypes[mTimeoutEventTypes.length - 1] = eventType;
         return getThis();
     }
 
+    void armTimeouts(StateMachineInstance instance) {
+        if (mTimeoutDelays == null) {
+            return;
+        }
+        TimingWheel timingWheel = mOwner.getTimingWheel();
+        for (int i = 0; i < mTimeoutDelays.length; i++) {
+            instance.armTimeout(mOwner.getIndex(), timingWheel, mTimeoutEventTypes[i], mTimeoutDelays[i]);
+        }
+    }
+
     void setOwner(StateMachine ownerMachine) {
         mOwner = ownerMachine;
     }
@@ -72,40 +205,114 @@ public class State<T extends State<T>> {
         return mId;
     }
 
-    void enter(State prev, State next, Map<String, Object> payload) {
-        LOGGER.debug("[" + mOwner.getName() + "] " + getId() + " - enter");
-        if (mOnEnterAction != null) {
-            mOnEnterAction.setPreviousState(prev);
-            mOnEnterAction.setNextState(next);
-            mOnEnterAction.setPayload(payload);
-            mOnEnterAction.run();
+    void enter(StateMachineInstance instance, State prev, State next, Map<String, Object> payload) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[" + mOwner.getName() + "] " + getId() + " - enter");
+        }
+        TransitionListener listener = mOwner.getTransitionListener();
+        if (listener != null) {
+            listener.onStateEntered(instance, this);
+        }
+        if (mOwner.getMetrics() != null) {
+            instance.markEntered(mOwner.getIndex());
+        }
+        armTimeouts(instance);
+        TransitionContext.execute(mOnEnterAction, prev, next, payload, instance);
+    }
+
+    void exit(StateMachineInstance instance, State prev, State next, Map<String, Object> payload) {
+        if (mTimeoutDelays != null) {
+            instance.cancelTimeouts(mOwner.getIndex());
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("[" + mOwner.getName() + "] " + getId() + " - exit");
+        }
+        TransitionListener listener = mOwner.getTransitionListener();
+        if (listener != null) {
+            listener.onStateExited(instance, this);
+        }
+        StateMachineMetrics metrics = mOwner.getMetrics();
+        if (metrics != null) {
+            long dwellTime = instance.markExited(mOwner.getIndex());
+            if (dwellTime >= 0) {
+                metrics.recordDwellTime(this, dwellTime);
+            }
+        }
+        TransitionContext.execute(mOnExitAction, prev, next, payload, instance);
+    }
+
+    Handler findHandler(StateMachineInstance instance, Event event) {
+        int eventType = event.getType();
+        if (eventType < 0 || eventType >= mHandlers.length) {
+            return null;
+        }
+        Handler[] handlers = mHandlers[eventType];
+        if (handlers == null) {
+            return null;
+        }
+        HandlerIndex index = eventType < mHandlerIndexes.length ? mHandlerIndexes[eventType] : null;
+        // listeners are told about every rejected guard, the index would skip the keyed ones
+        if (index == null || mOwner.getTransitionListener() != null) {
+            for (Handler handler : handlers) {
+                if (evaluate(instance, handler, event)) {
+                    return handler;
+                }
+            }
+            return null;
+        }
+        // keyed guards are looked up, the other guards before the keyed match are evaluated
+        int keyed = index.findKeyed(event.getPayload(), handlers.length);
+        for (int position : index.getOtherPositions()) {
+            if (position > keyed) {
+                break;
+            }
+            if (evaluate(instance, handlers[position], event)) {
+                return handlers[position];
+            }
         }
+        return keyed < handlers.length ? handlers[keyed] : null;
     }
 
-    void exit(State prev, State next, Map<String, Object> payload) {
-        LOGGER.debug("[" + mOwner.getName() + "] " + getId() + " - exit");
-        if (mOnExitAction != null) {
-            mOnExitAction.setPreviousState(prev);
-            mOnExitAction.setNextState(next);
-            mOnExitAction.setPayload(payload);
-            mOnExitAction.run();
+    private boolean evaluate(StateMachineInstance instance, Handler handler, Event event) {
+        if (handler.evaluate(event)) {
+            return true;
+        }
+        TransitionListener listener = mOwner.getTransitionListener();
+        if (listener != null) {
+            listener.onGuardRejected(instance, this, event.getName(), handler.getTargetState());
         }
+        return false;
     }
 
-    Handler findHandler(Event event) {
-        for (Handler handler : mHandlers.get(event.getName())) {
-            if (handler.evaluate(event)) {
-                return handler;
+    void compileHandlers() {
+        for (Handler[] handlers : mHandlers) {
+            if (handlers == null) {
+                continue;
+            }
+            for (Handler handler : handlers) {
+                if (handler.getKind() != TransitionKind.Internal) {
+                    handler.compile(mOwner.findTransitionDomain(this, handler));
+                }
             }
         }
-        return null;
     }
 
-    boolean handleWithOverride(Event event) {
-        Handler handler = findHandler(event);
+    boolean handleWithOverride(StateMachineInstance instance, Event event) {
+        return handle(instance, event);
+    }
+
+    // handles the event with the handlers of this state only, not those of nested states
+    final boolean handle(StateMachineInstance instance, Event event) {
+        Handler handler = findHandler(instance, event);
         if (handler != null) {
-            LOGGER.debug("[" + mOwner.getName() + "] " + mId + " - handle Event: " + event.getName());
-            mOwner.executeHandler(handler, event);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("[" + mOwner.getName() + "] " + mId + " - handle Event: " + event.getName());
+            }
+            TransitionListener listener = mOwner.getTransitionListener();
+            if (listener != null) {
+                listener.onHandlerSelected(instance, this, event.getName(), handler.getTargetState(), handler.getKind());
+            }
+            mOwner.executeHandler(instance, handler, event);
             return true;
         }
         return false;
@@ -116,12 +323,40 @@ public class State<T extends State<T>> {
         return mId;
     }
 
+    String toString(StateMachineInstance instance) {
+        return toString();
+    }
+
     void addParent(StateMachine stateMachine) {
         // do nothing
     }
 
-    Collection<? extends State> getDescendantStates() {
-        return new ArrayList<State>();
+    void index(List<StateMachine> stateMachines, List<State> states) {
+        mIndex = states.size();
+        states.add(this);
+        indexSubMachines(stateMachines, states);
+        mLastDescendantIndex = states.size() - 1;
+    }
+
+    void indexSubMachines(List<StateMachine> stateMachines, List<State> states) {
+        // do nothing
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Whether this state is nested within the given state, at any depth. Takes constant time:
+     * the descendants of a state are numbered consecutively after it.
+     */
+    public boolean isDescendantOf(State ancestor) {
+        if (ancestor == null || mOwner == null || ancestor.mOwner == null
+                || mOwner.getRoot() != ancestor.mOwner.getRoot()) {
+            return false;
+        }
+        mOwner.ensureIndexed();
+        return ancestor.mIndex < mIndex && mIndex <= ancestor.mLastDescendantIndex;
     }
 
     public EventHandler getEventHandler() {
@@ -131,4 +366,8 @@ public class State<T extends State<T>> {
     public List<State> getAllActiveStates() {
         return new ArrayList<State>();
     }
+
+    List<State> getAllActiveStates(StateMachineInstance instance) {
+        return new ArrayList<State>();
+    }
 }
@@ -1,31 +1,51 @@
 package de.artcom.hsm;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class StateMachine implements EventHandler {
 
     final static Logger LOGGER = LoggerFactory.getLogger(StateMachine.class);
 
     private final List<State> mStateList = new ArrayList<State>();
-    private final List<State> mDescendantStateList = new ArrayList<State>();
     private String mName;
     private State mInitialState;
-    private State mCurrentState;
-    private final Queue<Event> mEventQueue = new ConcurrentLinkedQueue<Event>();
-    private boolean mEventQueueInProgress = false;
     private final List<StateMachine> mPath = new ArrayList<StateMachine>();
     private State mContainer;
+    private volatile TransitionListener mTransitionListener;
+    private volatile StateMachineMetrics mMetrics;
+    private volatile Executor mExecutor;
+    private volatile TimingWheel mTimingWheel;
+    private volatile int mEventQueueCapacity;
+    private volatile OverflowPolicy mOverflowPolicy;
+    // 0 if a blocked producer waits until the queue has room
+    private volatile long mBlockTimeoutNanos;
+    // lane per event type, null while no priorities are set
+    private volatile int[] mEventLanes;
+    private volatile boolean mInternalEventsFirst;
+    private volatile boolean mIgnoreUnknownEvents;
+    // Dense number of every event type which any state of the model handles or defers, -1 for
+    // other event types, and the event type of every number. Set when frozen.
+    private int[] mSymbols;
+    private int[] mSymbolTypes;
+    private int mIndex;
+    private volatile StateMachine[] mStateMachines;
+    private State[] mStates;
+    // the configurations the instances of the model have been in, see configuration(State[])
+    private volatile Configuration[] mConfigurations;
+    private int mConfigurationCount;
+    private volatile StateMachineInstance mDefaultInstance;
 
     public StateMachine(String name, State initialState, State... states) {
         this(initialState, states);
@@ -38,7 +58,6 @@ public class StateMachine implements EventHandler {
         mInitialState = initialState;
         setOwner();
         generatePath();
-        generateDescendantStateList();
         mName = "";
     }
 
@@ -50,18 +69,113 @@ public class StateMachine implements EventHandler {
         return mContainer;
     }
 
-    private void generateDescendantStateList() {
-        mDescendantStateList.addAll(mStateList);
+    private void generatePath() {
+        mPath.add(0, this);
         for (State state : mStateList) {
-            mDescendantStateList.addAll(state.getDescendantStates());
+            state.addParent(this);
         }
     }
 
-    private void generatePath() {
-        mPath.add(0, this);
+    /**
+     * Creates a new instance of this model. All instances share the states, handlers, listeners
+     * and metrics of the model, each holds its own active states and event queue.
+     */
+    public StateMachineInstance newInstance() {
+        StateMachine root = mPath.get(0);
+        return new StateMachineInstance(root, root.freeze());
+    }
+
+    // Assigns every state machine of the model its index into the active states of an instance
+    // and numbers the states in depth-first order, see State.isDescendantOf(State).
+    private StateMachine[] freeze() {
+        StateMachine[] stateMachines = mStateMachines;
+        if (stateMachines != null) {
+            return stateMachines;
+        }
+        synchronized (this) {
+            if (mStateMachines == null) {
+                List<StateMachine> machineList = new ArrayList<StateMachine>();
+                List<State> stateList = new ArrayList<State>();
+                index(machineList, stateList);
+                for (int i = 0; i < machineList.size(); i++) {
+                    machineList.get(i).mIndex = i;
+                }
+                mStates = stateList.toArray(new State[stateList.size()]);
+                BitSet alphabet = new BitSet();
+                for (State state : mStates) {
+                    state.collectEventTypes(alphabet);
+                }
+                mSymbols = new int[alphabet.length()];
+                Arrays.fill(mSymbols, -1);
+                mSymbolTypes = new int[alphabet.cardinality()];
+                int symbol = 0;
+                for (int eventType = alphabet.nextSetBit(0); eventType >= 0; eventType = alphabet.nextSetBit(eventType + 1)) {
+                    mSymbols[eventType] = symbol;
+                    mSymbolTypes[symbol++] = eventType;
+                }
+                mConfigurations = new Configuration[16];
+                mStateMachines = machineList.toArray(new StateMachine[machineList.size()]);
+            }
+            return mStateMachines;
+        }
+    }
+
+    void index(List<StateMachine> stateMachines, List<State> states) {
+        stateMachines.add(this);
         for (State state : mStateList) {
-            state.addParent(this);
+            state.index(stateMachines, states);
+        }
+    }
+
+    StateMachine getRoot() {
+        return mPath.get(0);
+    }
+
+    // the model has to be indexed before states can be compared by their index
+    void ensureIndexed() {
+        getRoot().freeze();
+    }
+
+    // instances are created from a frozen model, they don't see later changes of its structure
+    // or its queue settings
+    boolean isFrozen() {
+        return getRoot().mStateMachines != null;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen()) {
+            throw new IllegalStateException(mName + " Can't change the event queue once the model is in use.");
+        }
+    }
+
+    // the instance bound to the current thread, or the default instance of the model
+    StateMachineInstance instance() {
+        StateMachine root = mPath.get(0);
+        StateMachineInstance current = StateMachineInstance.current();
+        if (current != null && current.getModel() == root) {
+            return current;
+        }
+        StateMachineInstance instance = root.mDefaultInstance;
+        if (instance == null) {
+            synchronized (root) {
+                instance = root.mDefaultInstance;
+                if (instance == null) {
+                    instance = root.newInstance();
+                    root.mDefaultInstance = instance;
+                }
+            }
         }
+        return instance;
+    }
+
+    // like instance(), but never creates the default instance
+    private StateMachineInstance peekInstance() {
+        StateMachine root = mPath.get(0);
+        StateMachineInstance current = StateMachineInstance.current();
+        if (current != null && current.getModel() == root) {
+            return current;
+        }
+        return root.mDefaultInstance;
     }
 
     public void init() {
@@ -69,128 +183,343 @@ public class StateMachine implements EventHandler {
     }
 
     public void init(Map<String, Object> payload) {
-        LOGGER.debug(mName + " init");
         if (mInitialState == null) {
             throw new IllegalStateException(mName + " Can't init without states defined.");
-        } else {
-            mEventQueueInProgress = true;
-            if(payload  == null) {
-                payload = new HashMap<String, Object>();
-            }
-            enterState(null, mInitialState, payload);
-            mEventQueueInProgress = false;
-            processEventQueue();
         }
+        instance().init(payload);
     }
 
-    void teardown(Map<String, Object> payload) {
-        LOGGER.debug(mName + " teardown");
+    void teardown(StateMachineInstance instance, Map<String, Object> payload) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(mName + " teardown");
+        }
         if(payload == null) {
             payload = new HashMap<String, Object>();
         }
-        exitState(mCurrentState, null, payload);
-        mCurrentState = null;
+        exitState(instance, instance.getActiveState(mIndex), null, payload);
+        instance.setActiveState(mIndex, null);
     }
 
     public void teardown() {
-        teardown(new HashMap<String, Object>());
+        instance().teardown();
     }
 
     @Override
     public void handleEvent(String event) {
-        handleEvent(event, new HashMap<String, Object>());
+        instance().handleEvent(event);
     }
 
     @Override
     public void handleEvent(String eventName, Map<String, Object> payload) {
-        if(mCurrentState == null) {
-            return; // TODO: throw an exception here
+        instance().handleEvent(eventName, payload);
+    }
+
+    public void handleEvent(int eventType) {
+        instance().handleEvent(eventType);
+    }
+
+    public void handleEvent(int eventType, Map<String, Object> payload) {
+        instance().handleEvent(eventType, payload);
+    }
+
+    /**
+     * Handles all events of the batch in one pass. The events are processed in order before any
+     * event raised by their actions, as if they had been queued at once.
+     */
+    public void handleEvents(EventBatch batch) {
+        instance().handleEvents(batch);
+    }
+
+    /**
+     * Queues the event and handles it on the executor of this state machine, so the calling
+     * thread never runs actions. The future completes with the active states after the event
+     * has been handled, or with the exception thrown by a guard or action.
+     */
+    public ListenableFuture<EventResult> handleEventAsync(String eventName, Map<String, Object> payload) {
+        return instance().handleEventAsync(eventName, payload);
+    }
+
+    public ListenableFuture<EventResult> handleEventAsync(String eventName) {
+        return instance().handleEventAsync(eventName);
+    }
+
+    public void setTimingWheel(TimingWheel timingWheel) {
+        mTimingWheel = timingWheel;
+    }
+
+    // the timing wheel is configured on the top-level state machine
+    TimingWheel getTimingWheel() {
+        TimingWheel timingWheel = mPath.get(0).mTimingWheel;
+        return timingWheel != null ? timingWheel : TimingWheel.getDefault();
+    }
+
+    /**
+     * Encodes the active states and the queued events of this state machine, see
+     * {@link StateMachineInstance#snapshot()}.
+     */
+    public byte[] snapshot() {
+        return instance().snapshot();
+    }
+
+    public void restore(byte[] snapshot) {
+        instance().restore(snapshot);
+    }
+
+    /**
+     * Bounds the event queue of every instance to a preallocated ring buffer of at least the
+     * given capacity. Events which don't fit are handled according to the policy. Without a
+     * capacity the queue is unbounded. Like the other queue settings, it has to be set before the
+     * model is initialized or instantiated, it throws an {@link IllegalStateException} afterwards.
+     */
+    public void setEventQueueCapacity(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
         }
-        // TODO: make a deep copy of the payload (also do this in Parallel)
-        mEventQueue.add(new Event(eventName, payload));
-        processEventQueue();
+        checkNotFrozen();
+        mOverflowPolicy = policy;
+        mEventQueueCapacity = capacity;
     }
 
-    private void processEventQueue() {
-        if (mEventQueueInProgress) {
-            return;
+    // the event queue is configured on the top-level state machine, 0 if unbounded
+    int getEventQueueCapacity() {
+        return mPath.get(0).mEventQueueCapacity;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return mPath.get(0).mOverflowPolicy;
+    }
+
+    /**
+     * Limits how long a producer waits for room in the queue with {@link OverflowPolicy#BLOCK}.
+     * When the time is up, the event is rejected as with {@link OverflowPolicy#REJECT}. Without a
+     * timeout, the producer waits until there is room or it is interrupted.
+     */
+    public void setBlockTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        checkNotFrozen();
+        mBlockTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    long getBlockTimeoutNanos() {
+        return mPath.get(0).mBlockTimeoutNanos;
+    }
+
+    /**
+     * Queues events with the given name in the lane of the priority. Queued events are handled
+     * from the highest lane first, in order within a lane. Events without a priority are
+     * {@link EventPriority#NORMAL}.
+     */
+    public synchronized void setEventPriority(String eventName, EventPriority priority) {
+        checkNotFrozen();
+        int eventType = EventTypes.intern(eventName);
+        int[] eventLanes = mEventLanes == null ? new int[0] : mEventLanes;
+        if (eventType >= eventLanes.length) {
+            int length = eventLanes.length;
+            eventLanes = Arrays.copyOf(eventLanes, eventType + 1);
+            Arrays.fill(eventLanes, length, eventLanes.length, EventLanes.laneOf(EventPriority.NORMAL));
+        } else {
+            eventLanes = eventLanes.clone();
+        }
+        eventLanes[eventType] = EventLanes.laneOf(priority);
+        mEventLanes = eventLanes;
+    }
+
+    /**
+     * Handles the events raised by actions before all events submitted from outside, as UML
+     * run-to-completion semantics demand. By default all events are handled in the order in
+     * which they are raised.
+     */
+    public void setInternalEventsFirst(boolean internalEventsFirst) {
+        checkNotFrozen();
+        mInternalEventsFirst = internalEventsFirst;
+    }
+
+    /**
+     * Drops events which no state of the model handles or defers as soon as they are submitted,
+     * without queuing them, notifying listeners or recording metrics. While an instance is idle,
+     * events which no active state handles or defers are dropped the same way. The dropped
+     * events are counted by {@link StateMachineInstance#getIgnoredEventCount()}.
+     */
+    public void setIgnoreUnknownEvents(boolean ignoreUnknownEvents) {
+        checkNotFrozen();
+        mIgnoreUnknownEvents = ignoreUnknownEvents;
+    }
+
+    boolean isIgnoreUnknownEvents() {
+        return mPath.get(0).mIgnoreUnknownEvents;
+    }
+
+    // the model has to be frozen
+    int[] getSymbols() {
+        return mPath.get(0).mSymbols;
+    }
+
+    int[] getSymbolTypes() {
+        return mPath.get(0).mSymbolTypes;
+    }
+
+    // The cached configuration of the active states, added when an instance is in it for the
+    // first time. The table is copied on write, so lookups don't lock.
+    Configuration configuration(State[] activeStates) {
+        StateMachine root = mPath.get(0);
+        int hash = Configuration.hash(activeStates);
+        Configuration configuration = find(root.mConfigurations, hash, activeStates);
+        if (configuration != null) {
+            return configuration;
+        }
+        synchronized (root) {
+            Configuration[] table = root.mConfigurations;
+            configuration = find(table, hash, activeStates);
+            if (configuration != null) {
+                return configuration;
+            }
+            if (root.mConfigurationCount >= table.length * 3 / 4) {
+                Configuration[] resized = new Configuration[table.length * 2];
+                for (Configuration bucket : table) {
+                    for (Configuration entry = bucket; entry != null; entry = entry.mNext) {
+                        add(resized, entry);
+                    }
+                }
+                table = resized;
+            } else {
+                table = table.clone();
+            }
+            configuration = add(table, new Configuration(activeStates.clone(), hash, root.mSymbolTypes.length));
+            root.mConfigurationCount++;
+            root.mConfigurations = table;
+            return configuration;
         }
-        mEventQueueInProgress = true;
-        while (mEventQueue.peek() != null) {
-            Event event = mEventQueue.poll();
-            if (!mCurrentState.handleWithOverride(event)) {
-                LOGGER.debug(mName + " nobody handled event: " + event.getName());
+    }
+
+    private static Configuration find(Configuration[] table, int hash, State[] activeStates) {
+        for (Configuration entry = table[hash & (table.length - 1)]; entry != null; entry = entry.mNext) {
+            if (entry.matches(hash, activeStates)) {
+                return entry;
             }
         }
-        mEventQueueInProgress = false;
+        return null;
+    }
+
+    // buckets are immutable lists, an entry is linked in by a copy which shares its chains
+    private static Configuration add(Configuration[] table, Configuration configuration) {
+        int bucket = configuration.getHash() & (table.length - 1);
+        Configuration entry = new Configuration(configuration, table[bucket]);
+        table[bucket] = entry;
+        return entry;
+    }
+
+    int[] getEventLanes() {
+        return mPath.get(0).mEventLanes;
+    }
+
+    boolean isInternalEventsFirst() {
+        return mPath.get(0).mInternalEventsFirst;
     }
 
-    boolean handleWithOverride(Event event) {
-        if (mCurrentState != null ) {
-            return mCurrentState.handleWithOverride(event);
+    public int getQueueDepth() {
+        return instance().getQueueDepth();
+    }
+
+    public int getQueueHighWaterMark() {
+        return instance().getQueueHighWaterMark();
+    }
+
+    public long getDroppedEventCount() {
+        return instance().getDroppedEventCount();
+    }
+
+    public long getIgnoredEventCount() {
+        return instance().getIgnoredEventCount();
+    }
+
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    // the executor is configured on the top-level state machine
+    Executor getExecutor() {
+        Executor executor = mPath.get(0).mExecutor;
+        return executor != null ? executor : AsyncExecutor.getDefault();
+    }
+
+    boolean handleWithOverride(StateMachineInstance instance, Event event) {
+        State currentState = instance.getActiveState(mIndex);
+        if (currentState != null ) {
+            return currentState.handleWithOverride(instance, event);
         } else {
             return false;
         }
     }
 
-    void executeHandler(Handler handler, Event event) {
-        LOGGER.debug(mName + " execute handler for event: " + event.getName());
+    void executeHandler(StateMachineInstance instance, Handler handler, Event event) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(mName + " execute handler for event: " + event.getName());
+        }
 
-        Action action = handler.getAction();
+        TransitionAction action = handler.getAction();
         State targetState = handler.getTargetState();
         if (targetState == null) {
             throw new IllegalStateException(mName + " cant find target state for transition " + event.getName());
         }
-        switch (handler.getKind()) {
-            case External:
-                doExternalTransition(mCurrentState, targetState, action, event);
-                break;
-            case Local:
-                doLocalTransition(mCurrentState, targetState, action, event);
-                break;
-            case Internal:
-                executeAction(action, mCurrentState, targetState, event.getPayload());
-                break;
+        State currentState = instance.getActiveState(mIndex);
+        StateMachineMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.recordTransition(currentState, event.getName(), handler);
         }
-    }
-
-    private void executeAction(Action action, State previousState, State targetState, Map<String, Object> payload) {
-        if (action != null) {
-            action.setPreviousState(previousState);
-            action.setNextState(targetState);
-            action.setPayload(payload);
-            action.run();
+        if (handler.getKind() == TransitionKind.Internal) {
+            TransitionContext.execute(action, currentState, targetState, event.getPayload(), instance);
+            return;
+        }
+        if (!handler.isCompiled()) {
+            handler.compile(findTransitionDomain(currentState, handler));
+        }
+        StateMachine domain = handler.getDomain();
+        if (domain != null) {
+            domain.switchState(instance, currentState, targetState, action, event.getPayload());
         }
     }
 
-    private void doExternalTransition(State previousState, State targetState, Action action, Event event) {
-        StateMachine lca = findLowestCommonAncestor(targetState);
-        lca.switchState(previousState, targetState, action, event.getPayload());
+    /**
+     * Precomputes the transition domain of every handler in this state machine and its
+     * descendants. Handlers which are not compiled up front are compiled on first execution.
+     */
+    public void compile() {
+        StateMachine root = getRoot();
+        root.freeze();
+        for (State state : root.mStates) {
+            if (root == this || state.getOwner() == this || state.isDescendantOf(mContainer)) {
+                state.compileHandlers();
+            }
+        }
     }
 
-    private void doLocalTransition(State previousState, State targetState, Action action, Event event) {
-        if(previousState.getDescendantStates().contains(targetState)) {
-            StateMachine stateMachine = findNextStateMachineOnPathTo(targetState);
-            stateMachine.switchState(previousState, targetState, action, event.getPayload());
-        } else if(targetState.getDescendantStates().contains(previousState)) {
-            int targetLevel = targetState.getOwner().getPath().size();
-            StateMachine stateMachine = mPath.get(targetLevel);
-            stateMachine.switchState(previousState, targetState, action, event.getPayload());
-        } else if(previousState.equals(targetState)) {
-            //TODO: clarify desired behavior for local transition on self
-            //      currently behaves like an internal transition
-        } else {
-            doExternalTransition(previousState, targetState, action, event);
+    // the domain is the state machine whose current state is switched, null for no switch
+    StateMachine findTransitionDomain(State sourceState, Handler handler) {
+        State targetState = handler.getTargetState();
+        if (handler.getKind() == TransitionKind.Local) {
+            if (targetState.isDescendantOf(sourceState)) {
+                return findNextStateMachineOnPathTo(targetState);
+            } else if (sourceState.isDescendantOf(targetState)) {
+                int targetLevel = targetState.getOwner().getPath().size();
+                return mPath.get(targetLevel);
+            } else if (sourceState.equals(targetState)) {
+                //TODO: clarify desired behavior for local transition on self
+                //      currently behaves like an internal transition
+                return null;
+            }
         }
+        return findLowestCommonAncestor(targetState);
     }
 
-    private void switchState(State previousState, State nextState, Action action, Map<String, Object> payload) {
-        exitState(previousState, nextState, payload);
-        executeAction(action, previousState, nextState, payload);
-        enterState(previousState, nextState, payload);
+    private void switchState(StateMachineInstance instance, State previousState, State nextState, TransitionAction action, Map<String, Object> payload) {
+        exitState(instance, previousState, nextState, payload);
+        TransitionContext.execute(action, previousState, nextState, payload, instance);
+        enterState(instance, previousState, nextState, payload);
     }
 
-    void enterState(State previousState, State targetState, Map<String, Object> payload) {
+    void enterState(StateMachineInstance instance, State previousState, State targetState, Map<String, Object> payload) {
         int targetLevel = targetState.getOwner().getPath().size();
         int localLevel = mPath.size();
         State nextState;
@@ -201,12 +530,11 @@ public class StateMachine implements EventHandler {
         } else { // if targetLevel > localLevel
             nextState = findNextStateOnPathTo(targetState);
         }
-        if (mStateList.contains(nextState)) {
-            mCurrentState = nextState;
-        } else {
-            mCurrentState = mInitialState;
+        if (nextState.getOwner() != this) {
+            nextState = mInitialState;
         }
-        mCurrentState.enter(previousState, targetState, payload);
+        instance.setActiveState(mIndex, nextState);
+        nextState.enter(instance, previousState, targetState, payload);
     }
 
     private State findNextStateOnPathTo(State targetState) {
@@ -219,8 +547,8 @@ public class StateMachine implements EventHandler {
         return targetOwner.getPath().get(localLevel);
     }
 
-    private void exitState(State previousState, State nextState, Map<String, Object> payload) {
-        mCurrentState.exit(previousState, nextState, payload);
+    private void exitState(StateMachineInstance instance, State previousState, State nextState, Map<String, Object> payload) {
+        instance.getActiveState(mIndex).exit(instance, previousState, nextState, payload);
     }
 
     private void setOwner() {
@@ -231,10 +559,45 @@ public class StateMachine implements EventHandler {
 
     @Override
     public String toString() {
-        if (mCurrentState == null) {
-            return mInitialState.toString();
+        StateMachineInstance instance = peekInstance();
+        if (instance != null && this == getRoot()) {
+            return instance.toString();
+        }
+        return toString(instance);
+    }
+
+    String toString(StateMachineInstance instance) {
+        State currentState = instance != null ? instance.getActiveState(mIndex) : null;
+        if (currentState == null) {
+            return mInitialState.toString(instance);
         }
-        return mCurrentState.toString();
+        return currentState.toString(instance);
+    }
+
+    public synchronized void addTransitionListener(TransitionListener listener) {
+        mTransitionListener = TransitionMulticaster.add(mTransitionListener, listener);
+    }
+
+    public synchronized void removeTransitionListener(TransitionListener listener) {
+        mTransitionListener = TransitionMulticaster.remove(mTransitionListener, listener);
+    }
+
+    // listeners are registered on the top-level state machine
+    TransitionListener getTransitionListener() {
+        return mPath.get(0).mTransitionListener;
+    }
+
+    public void setMetrics(StateMachineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    // metrics are attached to the top-level state machine
+    StateMachineMetrics getMetrics() {
+        return mPath.get(0).mMetrics;
+    }
+
+    int getIndex() {
+        return mIndex;
     }
 
     List<StateMachine> getPath() {
@@ -255,6 +618,8 @@ public class StateMachine implements EventHandler {
     }
 
     void addParent(StateMachine stateMachine) {
+        mStateMachines = null;
+        mDefaultInstance = null;
         mPath.add(0, stateMachine);
         for (State state : mStateList) {
             state.addParent(stateMachine);
@@ -266,32 +631,56 @@ public class StateMachine implements EventHandler {
             throw new IllegalStateException(mName + " Target state '" + targetState.getId() + "' is not contained in state machine model.");
         }
         List<StateMachine> targetPath = targetState.getOwner().getPath();
-        int size = mPath.size();
-        for (int i = 1; i < size; i++) {
-            try {
-                StateMachine targetAncestor = targetPath.get(i);
-                StateMachine localAncestor = mPath.get(i);
-                if (!targetAncestor.equals(localAncestor)) {
-                    return mPath.get(i - 1);
-                }
-            } catch (IndexOutOfBoundsException e) {
+        int commonLevels = Math.min(mPath.size(), targetPath.size());
+        for (int i = 1; i < commonLevels; i++) {
+            if (!targetPath.get(i).equals(mPath.get(i))) {
                 return mPath.get(i - 1);
             }
         }
-        return this;
+        return mPath.get(commonLevels - 1);
     }
 
-    List<State> getDescendantStates() {
-        return mDescendantStateList;
+    public List<State> getAllActiveStates() {
+        StateMachineInstance instance = instance();
+        if (this == getRoot()) {
+            return instance.getAllActiveStates();
+        }
+        return getAllActiveStates(instance);
     }
 
-    public List<State> getAllActiveStates() {
+    /**
+     * Whether the state is active in the default instance, or in the instance processing the
+     * current event. Takes constant time.
+     */
+    public boolean isActive(State state) {
+        return instance().isActive(state);
+    }
+
+    List<State> getAllActiveStates(StateMachineInstance instance) {
+        State currentState = instance.getActiveState(mIndex);
         ArrayList<State> stateList = new ArrayList<State>();
-        stateList.add(mCurrentState);
-        stateList.addAll(mCurrentState.getAllActiveStates());
+        stateList.add(currentState);
+        stateList.addAll(currentState.getAllActiveStates(instance));
         return stateList;
     }
 
+    // position of the state in this state machine, used to encode snapshots
+    int indexOf(State state) {
+        return mStateList.indexOf(state);
+    }
+
+    State getState(int index) {
+        return mStateList.get(index);
+    }
+
+    int getStateCount() {
+        return mStateList.size();
+    }
+
+    State getInitialState() {
+        return mInitialState;
+    }
+
 
     String getName() {
         return mName;
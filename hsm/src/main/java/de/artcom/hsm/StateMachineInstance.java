@@ -0,0 +1,1163 @@
+package de.artcom.hsm;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Running instance of a state machine model. The model (the top-level {@link StateMachine} with
+ * its states, handlers, listeners and metrics) is shared by all instances, an instance only holds
+ * the active state of every state machine in the model and its event queue.
+ */
+public class StateMachineInstance implements EventHandler {
+
+    private static final ThreadLocal<StateMachineInstance> CURRENT = new ThreadLocal<StateMachineInstance>();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<StateMachineInstance, Queue> EVENT_QUEUE =
+            AtomicReferenceFieldUpdater.newUpdater(StateMachineInstance.class, Queue.class, "mEventQueue");
+    private static final AtomicReferenceFieldUpdater<StateMachineInstance, Timeout[]> TIMEOUTS =
+            AtomicReferenceFieldUpdater.newUpdater(StateMachineInstance.class, Timeout[].class, "mTimeouts");
+    private static final AtomicReferenceFieldUpdater<StateMachineInstance, long[]> ENTERED_AT =
+            AtomicReferenceFieldUpdater.newUpdater(StateMachineInstance.class, long[].class, "mEnteredAt");
+    private static final AtomicIntegerFieldUpdater<StateMachineInstance> EVENT_QUEUE_SIZE =
+            AtomicIntegerFieldUpdater.newUpdater(StateMachineInstance.class, "mEventQueueSize");
+    private static final AtomicIntegerFieldUpdater<StateMachineInstance> EVENT_QUEUE_HIGH_WATER_MARK =
+            AtomicIntegerFieldUpdater.newUpdater(StateMachineInstance.class, "mEventQueueHighWaterMark");
+    private static final AtomicLongFieldUpdater<StateMachineInstance> DROPPED_EVENTS =
+            AtomicLongFieldUpdater.newUpdater(StateMachineInstance.class, "mDroppedEvents");
+    private static final AtomicLongFieldUpdater<StateMachineInstance> IGNORED_EVENTS =
+            AtomicLongFieldUpdater.newUpdater(StateMachineInstance.class, "mIgnoredEvents");
+    private static final AtomicIntegerFieldUpdater<StateMachineInstance> EVENT_QUEUE_IN_PROGRESS =
+            AtomicIntegerFieldUpdater.newUpdater(StateMachineInstance.class, "mEventQueueInProgress");
+    private static final AtomicIntegerFieldUpdater<StateMachineInstance> CONFIGURATION_VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(StateMachineInstance.class, "mConfigurationVersion");
+    private static final AtomicIntegerFieldUpdater<StateMachineInstance> DRAIN_SCHEDULED =
+            AtomicIntegerFieldUpdater.newUpdater(StateMachineInstance.class, "mDrainScheduled");
+    // how long a producer waits for room in a full queue before checking again
+    private static final long BLOCK_WAIT_NANOS = 50000;
+
+    private final StateMachine mModel;
+    private final StateMachine[] mStateMachines;
+    private final State[] mActiveStates;
+    private volatile Queue<Event> mEventQueue;
+    private volatile int mEventQueueSize;
+    private volatile int mEventQueueHighWaterMark;
+    private volatile long mDroppedEvents;
+    private volatile long mIgnoredEvents;
+    private volatile int mEventQueueInProgress;
+    private volatile int mDrainScheduled;
+    private volatile EventJournal mJournal;
+    private volatile boolean mSnapshotPending;
+    // changed with every active state, the active view is rebuilt when it doesn't match
+    private volatile int mConfigurationVersion;
+    private volatile ActiveView mActiveView;
+    // armed timeouts per state machine, created with the first timeout
+    private volatile Timeout[] mTimeouts;
+    // only used by the thread which owns the in-progress flag
+    private Event mDispatchEvent;
+    private Map<String, Object> mEmptyPayload;
+    // when the active state of every state machine was entered, created once metrics are attached
+    private volatile long[] mEnteredAt;
+    // deferred events per event type, only used by the thread which owns the in-progress flag
+    private ArrayDeque<Event>[] mDeferredEvents;
+    private int[] mDeferredTypes;
+    private int mDeferredTypeCount;
+    private long mDeferredSequence;
+    private ArrayDeque<Event> mRecalledEvents;
+    private boolean mRecalling;
+    private boolean mParked;
+    private boolean mConfigurationChanged;
+    // set while the thread which owns the in-progress flag exits all states
+    private boolean mTearingDown;
+    // the configuration of the model matching the active states and the version it was looked
+    // up for, only used by the thread which owns the in-progress flag
+    private Configuration mConfiguration;
+    private int mConfigurationLookedUp;
+    // created with the first asynchronous event
+    private volatile Runnable mDrainTask;
+
+    StateMachineInstance(StateMachine model, StateMachine[] stateMachines) {
+        mModel = model;
+        mStateMachines = stateMachines;
+        mActiveStates = new State[stateMachines.length];
+    }
+
+    // the instance whose events are processed by the current thread, if any
+    static StateMachineInstance current() {
+        return CURRENT.get();
+    }
+
+    // binds the instance to the current thread and returns the previously bound one
+    static StateMachineInstance swapCurrent(StateMachineInstance instance) {
+        StateMachineInstance previous = CURRENT.get();
+        CURRENT.set(instance);
+        return previous;
+    }
+
+    public StateMachine getModel() {
+        return mModel;
+    }
+
+    public void init() {
+        init(new HashMap<String, Object>());
+    }
+
+    public void init(Map<String, Object> payload) {
+        if (StateMachine.LOGGER.isDebugEnabled()) {
+            StateMachine.LOGGER.debug(mModel.getName() + " init");
+        }
+        if (!EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            throw new IllegalStateException(mModel.getName() + " Can't init while events are processed.");
+        }
+        StateMachineInstance previous = bind();
+        try {
+            if(payload  == null) {
+                payload = new HashMap<String, Object>();
+            }
+            mModel.enterState(this, null, mModel.getInitialState(), payload);
+        } finally {
+            unbind(previous);
+        }
+        processEventQueue();
+    }
+
+    public void teardown() {
+        teardown(new HashMap<String, Object>());
+    }
+
+    /**
+     * Exits all active states. Queued and deferred events are discarded, the futures of
+     * asynchronous events are cancelled. Events raised by exit actions are handled right away
+     * by the states which are still active.
+     */
+    public void teardown(Map<String, Object> payload) {
+        if (!EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            throw new IllegalStateException(mModel.getName() + " Can't teardown while events are processed.");
+        }
+        StateMachineInstance previous = bind();
+        try {
+            clearEventQueue();
+            mTearingDown = true;
+            try {
+                mModel.teardown(this, payload);
+            } finally {
+                mTearingDown = false;
+            }
+            clearEventQueue();
+            clearDeferredEvents();
+        } finally {
+            unbind(previous);
+        }
+    }
+
+    @Override
+    public void handleEvent(String event) {
+        handleEvent(EventTypes.lookup(event), event, null);
+    }
+
+    @Override
+    public void handleEvent(String eventName, Map<String, Object> payload) {
+        handleEvent(EventTypes.lookup(eventName), eventName, payload);
+    }
+
+    public void handleEvent(int eventType) {
+        handleEvent(eventType, EventTypes.nameOf(eventType), null);
+    }
+
+    public void handleEvent(int eventType, Map<String, Object> payload) {
+        handleEvent(eventType, EventTypes.nameOf(eventType), payload);
+    }
+
+    // Any thread may submit events, but only the thread which wins the in-progress flag processes
+    // them, so events are still handled one at a time to completion. An idle machine dispatches
+    // directly through its reusable event and payload, all other events are queued and drained
+    // by the current owner of the flag. After releasing the flag the queue is checked again, so
+    // events submitted during the release are not left behind.
+    private void handleEvent(int eventType, String eventName, Map<String, Object> payload) {
+        if(mActiveStates[0] == null) {
+            return; // TODO: throw an exception here
+        }
+        if (ignores(eventType)) {
+            return;
+        }
+        if (mTearingDown && CURRENT.get() == this) {
+            dispatch(new Event(eventType, eventName, copyPayload(payload)),
+                    mModel.getTransitionListener(), mModel.getMetrics());
+            return;
+        }
+        EventJournal journal = journal();
+        if (journal != null) {
+            journal.append(this, new Event(eventType, eventName, copyPayload(payload)));
+            processEventQueue();
+            return;
+        }
+        if (!isEventQueueEmpty() || !EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            enqueue(new Event(eventType, eventName, copyPayload(payload)));
+            processEventQueue();
+            return;
+        }
+        StateMachineInstance previous = bind();
+        Event event = dispatchEvent();
+        try {
+            if (!ignoredByConfiguration(eventType)) {
+                event.set(eventType, eventName, payload == null ? emptyPayload() : payload);
+                dispatch(event, mModel.getTransitionListener(), mModel.getMetrics());
+            }
+        } finally {
+            event.clear();
+            unbind(previous);
+        }
+        processEventQueue();
+    }
+
+    /**
+     * Handles all events of the batch in one pass. The events are processed in order before any
+     * event raised by their actions, as if they had been queued at once. Listeners and metrics
+     * still see every event, only a queued batch is added to the queue depth at once.
+     */
+    public void handleEvents(EventBatch batch) {
+        int size = batch.size();
+        if (mActiveStates[0] == null || size == 0) {
+            return;
+        }
+        TransitionListener listener = mModel.getTransitionListener();
+        if (listener != null) {
+            listener.onBatchReceived(this, size);
+        }
+        StateMachineMetrics metrics = mModel.getMetrics();
+        if (mTearingDown && CURRENT.get() == this) {
+            for (int i = 0; i < size; i++) {
+                if (!ignores(batch.getType(i))) {
+                    dispatch(new Event(batch.getType(i), batch.getName(i), copyPayload(batch.getPayload(i))),
+                            listener, metrics);
+                }
+            }
+            return;
+        }
+        EventJournal journal = journal();
+        if (journal != null) {
+            for (int i = 0; i < size; i++) {
+                if (ignores(batch.getType(i))) {
+                    continue;
+                }
+                Map<String, Object> payload = batch.getPayload(i);
+                journal.append(this, new Event(batch.getType(i), batch.getName(i),
+                        copyPayload(payload)));
+            }
+            processEventQueue();
+            return;
+        }
+        if (!isEventQueueEmpty() || !EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            int queued = 0;
+            try {
+                for (int i = 0; i < size; i++) {
+                    if (ignores(batch.getType(i))) {
+                        continue;
+                    }
+                    Map<String, Object> payload = batch.getPayload(i);
+                    if (offer(new Event(batch.getType(i), batch.getName(i), copyPayload(payload)), true)) {
+                        queued++;
+                    }
+                }
+            } finally {
+                queued(queued);
+            }
+            processEventQueue();
+            return;
+        }
+        StateMachineInstance previous = bind();
+        Event event = dispatchEvent();
+        try {
+            for (int i = 0; i < size; i++) {
+                if (ignores(batch.getType(i)) || ignoredByConfiguration(batch.getType(i))) {
+                    continue;
+                }
+                Map<String, Object> payload = batch.getPayload(i);
+                event.set(batch.getType(i), batch.getName(i), payload == null ? emptyPayload() : payload);
+                dispatch(event, listener, metrics);
+            }
+        } finally {
+            event.clear();
+            unbind(previous);
+        }
+        processEventQueue();
+    }
+
+    /**
+     * Queues the event and handles it on the executor of the model, so the calling thread never
+     * runs actions. The future completes with the active states after the event has been
+     * handled, or with the exception thrown by a guard or action.
+     */
+    public ListenableFuture<EventResult> handleEventAsync(String eventName, Map<String, Object> payload) {
+        SettableFuture<EventResult> result = SettableFuture.create();
+        if (mActiveStates[0] == null) {
+            result.set(new EventResult(eventName, false, new ArrayList<State>()));
+            return result;
+        }
+        int eventType = EventTypes.lookup(eventName);
+        if (ignores(eventType)) {
+            result.set(new EventResult(eventName, false, getAllActiveStates()));
+            return result;
+        }
+        Event event = new Event(eventType, eventName, copyPayload(payload), result);
+        EventJournal journal = journal();
+        try {
+            if (journal != null) {
+                journal.append(this, event);
+            } else {
+                enqueue(event);
+            }
+        } catch (RejectedExecutionException e) {
+            result.setException(e);
+            return result;
+        }
+        scheduleDrain();
+        return result;
+    }
+
+    // hands the queued events to the executor unless a drain is already scheduled
+    private void scheduleDrain() {
+        if (DRAIN_SCHEDULED.compareAndSet(this, 0, 1)) {
+            try {
+                mModel.getExecutor().execute(drainTask());
+            } catch (RuntimeException e) {
+                mDrainScheduled = 0;
+                failAsyncEvents(e);
+            }
+        }
+    }
+
+    private Runnable drainTask() {
+        Runnable drainTask = mDrainTask;
+        if (drainTask == null) {
+            drainTask = new Runnable() {
+                @Override
+                public void run() {
+                    mDrainScheduled = 0;
+                    // nobody waits for the synchronous events handled here
+                    RuntimeException failure = drainEventQueue();
+                    if (failure != null) {
+                        StateMachine.LOGGER.error(mModel.getName() + " failed to handle queued events", failure);
+                    }
+                }
+            };
+            mDrainTask = drainTask;
+        }
+        return drainTask;
+    }
+
+    // Fails the queued asynchronous events when the executor refuses to handle them. If another
+    // thread is processing events, it handles them instead. Events queued synchronously by other
+    // threads meanwhile are queued again and handled, as by any thread which owns the flag.
+    private void failAsyncEvents(RuntimeException cause) {
+        if (!EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            return;
+        }
+        List<Event> events = new ArrayList<Event>();
+        try {
+            Queue<Event> eventQueue = mEventQueue;
+            Event event;
+            while ((event = eventQueue.poll()) != null) {
+                resizeQueue(-1);
+                if (event.getResult() != null) {
+                    event.getResult().setException(cause);
+                } else {
+                    events.add(event);
+                }
+            }
+            for (Event queued : events) {
+                requeue(queued);
+            }
+        } finally {
+            mEventQueueInProgress = 0;
+        }
+        if (!events.isEmpty()) {
+            processEventQueue();
+        }
+    }
+
+    public ListenableFuture<EventResult> handleEventAsync(String eventName) {
+        return handleEventAsync(eventName, null);
+    }
+
+    /**
+     * Encodes the active states of all state machines and the queued events into a compact binary
+     * form. Payload values must be strings, boxed primitives or serializable. No actions are run
+     * by the calling thread, events submitted meanwhile are handled on the executor of the model.
+     */
+    public byte[] snapshot() {
+        byte[] snapshot = snapshotIfIdle();
+        if (snapshot == null) {
+            throw new IllegalStateException(mModel.getName() + " Can't snapshot while events are processed.");
+        }
+        return snapshot;
+    }
+
+    // null if another thread is processing events. Events queued by other threads while the
+    // snapshot is taken are left to the executor, their threads didn't get the flag.
+    byte[] snapshotIfIdle() {
+        if (!EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            return null;
+        }
+        try {
+            // timeouts are armed again on restore, so pending timeout events are left out
+            List<Event> events = deferredEvents();
+            Queue<Event> eventQueue = mEventQueue;
+            if (eventQueue != null) {
+                for (Event event : eventQueue) {
+                    if (event.getTimeout() == null) {
+                        events.add(event);
+                    }
+                }
+            }
+            return SnapshotCodec.write(mStateMachines, mActiveStates, events);
+        } finally {
+            mEventQueueInProgress = 0;
+            if (!isEventQueueEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Replaces the active states and queued events with those of a snapshot of the same model.
+     * No enter actions are run and no listeners are notified, the restored events are handled
+     * right away. Timeouts of the restored states are armed again with their full delay.
+     * Serializable payload values are deserialized, so the snapshot must come from a trusted
+     * source.
+     */
+    public void restore(byte[] snapshot) {
+        if (!EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            throw new IllegalStateException(mModel.getName() + " Can't restore while events are processed.");
+        }
+        try {
+            State[] activeStates = new State[mActiveStates.length];
+            List<Event> events = SnapshotCodec.read(snapshot, mStateMachines, activeStates);
+            clearEventQueue();
+            clearDeferredEvents();
+            for (int i = 0; i < activeStates.length; i++) {
+                cancelTimeouts(i);
+            }
+            System.arraycopy(activeStates, 0, mActiveStates, 0, activeStates.length);
+            CONFIGURATION_VERSION.incrementAndGet(this);
+            for (State state : activeStates) {
+                if (state != null) {
+                    state.armTimeouts(this);
+                }
+            }
+            if (mModel.getMetrics() != null) {
+                long[] enteredAt = enteredAt();
+                long now = System.nanoTime();
+                for (int i = 0; i < activeStates.length; i++) {
+                    enteredAt[i] = activeStates[i] != null ? now : 0;
+                }
+            } else if (mEnteredAt != null) {
+                Arrays.fill(mEnteredAt, 0);
+            }
+            for (Event event : events) {
+                enqueue(event, false);
+            }
+        } finally {
+            mEventQueueInProgress = 0;
+        }
+        processEventQueue();
+    }
+
+    private void clearEventQueue() {
+        Queue<Event> eventQueue = mEventQueue;
+        if (eventQueue == null) {
+            return;
+        }
+        Event event;
+        while ((event = eventQueue.poll()) != null) {
+            resizeQueue(-1);
+            if (event.getResult() != null) {
+                event.getResult().cancel(false);
+            }
+        }
+    }
+
+    /**
+     * The active states in depth-first order. The list is immutable and shared until the
+     * configuration changes, so polling it doesn't allocate.
+     */
+    public List<State> getAllActiveStates() {
+        return activeView().mStates;
+    }
+
+    /**
+     * Whether the state is active in this instance. Takes constant time: a state is active if it
+     * is the active state of its state machine, whose slot is cleared when its container exits.
+     */
+    public boolean isActive(State state) {
+        StateMachine owner = state.getOwner();
+        return owner != null && owner.getRoot() == mModel && mActiveStates[owner.getIndex()] == state;
+    }
+
+    @Override
+    public String toString() {
+        ActiveView view = activeView();
+        String string = view.mString;
+        if (string == null) {
+            string = mModel.toString(this);
+            view.mString = string;
+        }
+        return string;
+    }
+
+    // Machines are indexed depth-first, so the occupied slots list the active states in the
+    // order of a depth-first walk. Exited state machines have empty slots.
+    private ActiveView activeView() {
+        ActiveView view = mActiveView;
+        int version = mConfigurationVersion;
+        if (view != null && view.mVersion == version) {
+            return view;
+        }
+        List<State> states = new ArrayList<State>();
+        for (State state : mActiveStates) {
+            if (state != null) {
+                states.add(state);
+            }
+        }
+        view = new ActiveView(version, Collections.unmodifiableList(states));
+        mActiveView = view;
+        return view;
+    }
+
+    private static final class ActiveView {
+
+        final int mVersion;
+        final List<State> mStates;
+        // built on first use, racing threads build equal strings
+        String mString;
+
+        ActiveView(int version, List<State> states) {
+            mVersion = version;
+            mStates = states;
+        }
+    }
+
+    void armTimeout(int machineIndex, TimingWheel timingWheel, int eventType, long delayNanos) {
+        Timeout[] timeouts = mTimeouts;
+        if (timeouts == null) {
+            TIMEOUTS.compareAndSet(this, null, new Timeout[mActiveStates.length]);
+            timeouts = mTimeouts;
+        }
+        Timeout timeout = timingWheel.arm(this, eventType, EventTypes.nameOf(eventType), delayNanos);
+        timeout.mNextInMachine = timeouts[machineIndex];
+        timeouts[machineIndex] = timeout;
+    }
+
+    void cancelTimeouts(int machineIndex) {
+        Timeout[] timeouts = mTimeouts;
+        if (timeouts == null) {
+            return;
+        }
+        TimingWheel timingWheel = mModel.getTimingWheel();
+        Timeout timeout = timeouts[machineIndex];
+        timeouts[machineIndex] = null;
+        while (timeout != null) {
+            timingWheel.cancel(timeout);
+            timeout = timeout.mNextInMachine;
+        }
+    }
+
+    // timeout events are queued, their state may be exited before they are dispatched
+    void handleTimeout(Timeout timeout) {
+        if (mActiveStates[0] == null) {
+            return;
+        }
+        try {
+            enqueue(new Event(timeout.getEventType(), timeout.getEventName(), new HashMap<String, Object>(), timeout));
+        } catch (RejectedExecutionException e) {
+            StateMachine.LOGGER.warn(mModel.getName() + " dropped timeout " + timeout.getEventName(), e);
+        }
+        processEventQueue();
+    }
+
+    void setJournal(EventJournal journal) {
+        mJournal = journal;
+    }
+
+    // events raised by actions of this instance are not journaled, replaying raises them again
+    private EventJournal journal() {
+        EventJournal journal = mJournal;
+        if (journal == null || CURRENT.get() == this) {
+            return null;
+        }
+        return journal;
+    }
+
+    State getActiveState(int machineIndex) {
+        return mActiveStates[machineIndex];
+    }
+
+    void setActiveState(int machineIndex, State state) {
+        mActiveStates[machineIndex] = state;
+        mConfigurationChanged = true;
+        CONFIGURATION_VERSION.incrementAndGet(this);
+    }
+
+    void markEntered(int machineIndex) {
+        enteredAt()[machineIndex] = System.nanoTime();
+    }
+
+    // nanoseconds since the active state of the machine was entered, -1 if unknown
+    long markExited(int machineIndex) {
+        long[] enteredAt = mEnteredAt;
+        if (enteredAt == null || enteredAt[machineIndex] == 0) {
+            return -1;
+        }
+        long dwellTime = System.nanoTime() - enteredAt[machineIndex];
+        enteredAt[machineIndex] = 0;
+        return dwellTime;
+    }
+
+    // concurrent regions may enter their first states at the same time
+    private long[] enteredAt() {
+        long[] enteredAt = mEnteredAt;
+        if (enteredAt == null) {
+            ENTERED_AT.compareAndSet(this, null, new long[mActiveStates.length]);
+            enteredAt = mEnteredAt;
+        }
+        return enteredAt;
+    }
+
+    private StateMachineInstance bind() {
+        return swapCurrent(this);
+    }
+
+    private void unbind(StateMachineInstance previous) {
+        swapCurrent(previous);
+        mEventQueueInProgress = 0;
+    }
+
+    private Event dispatchEvent() {
+        if (mDispatchEvent == null) {
+            mDispatchEvent = new Event();
+        }
+        return mDispatchEvent;
+    }
+
+    // Queued events, deferred events and concurrent regions get their own view of the payload, so
+    // producers may reuse their payload once the event is submitted. Typed payloads are copied on
+    // write, maps are copied shallowly.
+    static Map<String, Object> copyPayload(Map<String, Object> payload) {
+        if (payload == null) {
+            return new HashMap<String, Object>();
+        }
+        if (payload instanceof Payload) {
+            return ((Payload) payload).copy();
+        }
+        return new HashMap<String, Object>(payload);
+    }
+
+    // the reusable empty payload may only be cleared while no queued event can refer to it
+    private Map<String, Object> emptyPayload() {
+        if (!isEventQueueEmpty()) {
+            return new HashMap<String, Object>();
+        }
+        if (mEmptyPayload == null) {
+            mEmptyPayload = new Payload();
+        }
+        mEmptyPayload.clear();
+        return mEmptyPayload;
+    }
+
+    private boolean isEventQueueEmpty() {
+        Queue<Event> eventQueue = mEventQueue;
+        return eventQueue == null || eventQueue.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Queue<Event> eventQueue() {
+        Queue<Event> eventQueue = mEventQueue;
+        if (eventQueue == null) {
+            Queue<Event> newQueue;
+            int capacity = mModel.getEventQueueCapacity();
+            if (mModel.getEventLanes() != null || mModel.isInternalEventsFirst()) {
+                newQueue = new EventLanes(capacity);
+            } else if (capacity > 0) {
+                newQueue = new EventRingBuffer(capacity);
+            } else {
+                newQueue = new ConcurrentLinkedQueue<Event>();
+            }
+            EVENT_QUEUE.compareAndSet(this, null, newQueue);
+            eventQueue = mEventQueue;
+        }
+        return eventQueue;
+    }
+
+    /**
+     * The number of queued events.
+     */
+    public int getQueueDepth() {
+        return Math.max(0, mEventQueueSize);
+    }
+
+    /**
+     * The largest number of events queued at once since the instance was created.
+     */
+    public int getQueueHighWaterMark() {
+        return mEventQueueHighWaterMark;
+    }
+
+    /**
+     * The number of events dropped or rejected because the bounded event queue was full.
+     */
+    public long getDroppedEventCount() {
+        return mDroppedEvents;
+    }
+
+    // false if the event was dropped, throws if it was rejected
+    boolean enqueue(Event event) {
+        return enqueue(event, true);
+    }
+
+    // Events raised by actions while events are handled and restored events are queued beyond
+    // the capacity of a bounded queue: actions can't wait for the thread which runs them and
+    // rejecting their events would leave the transition half done.
+    private boolean enqueue(Event event, boolean bounded) {
+        if (!offer(event, bounded)) {
+            return false;
+        }
+        queued(1);
+        return true;
+    }
+
+    // queues an event polled from the queue again, in the lane it had
+    private void requeue(Event event) {
+        Queue<Event> eventQueue = eventQueue();
+        if (!eventQueue.offer(event)) {
+            ((BoundedEventQueue) eventQueue).offerBeyondCapacity(event);
+        }
+        queued(1);
+    }
+
+    // queues the event without counting it, see queued(int)
+    private boolean offer(Event event, boolean bounded) {
+        Queue<Event> eventQueue = eventQueue();
+        if (eventQueue instanceof EventLanes) {
+            event.setLane(laneOf(event));
+        }
+        if (!eventQueue.offer(event)) {
+            if (!bounded || CURRENT.get() == this) {
+                ((BoundedEventQueue) eventQueue).offerBeyondCapacity(event);
+            } else if (!overflow((BoundedEventQueue) eventQueue, event)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // adds the queued events to the queue size, batches are counted at once
+    private void queued(int count) {
+        if (count == 0) {
+            return;
+        }
+        int queueSize = resizeQueue(count);
+        int highWaterMark = mEventQueueHighWaterMark;
+        while (queueSize > highWaterMark
+                && !EVENT_QUEUE_HIGH_WATER_MARK.compareAndSet(this, highWaterMark, queueSize)) {
+            highWaterMark = mEventQueueHighWaterMark;
+        }
+    }
+
+    // every change of the queue size is reported, so the metrics can add up the queues of all
+    // instances
+    private int resizeQueue(int delta) {
+        int queueSize = EVENT_QUEUE_SIZE.addAndGet(this, delta);
+        StateMachineMetrics metrics = mModel.getMetrics();
+        if (metrics != null) {
+            metrics.recordQueueDepth(delta, queueSize);
+        }
+        return queueSize;
+    }
+
+    // Only bounded queues overflow. A blocked producer handles the queued events itself when no
+    // other thread does, asynchronous producers only wait, they never run actions.
+    private boolean overflow(BoundedEventQueue eventQueue, Event event) {
+        switch (mModel.getOverflowPolicy()) {
+            case DROP_NEWEST:
+                drop(event);
+                return false;
+            case DROP_OLDEST:
+                while (!eventQueue.offer(event)) {
+                    Event oldest = eventQueue.pollOldest(event);
+                    if (oldest == null) {
+                        // only events queued beyond the capacity are left, they are never dropped
+                        drop(event);
+                        return false;
+                    }
+                    resizeQueue(-1);
+                    drop(oldest);
+                }
+                return true;
+            case BLOCK:
+                boolean drain = event.getResult() == null;
+                long timeout = mModel.getBlockTimeoutNanos();
+                long deadline = System.nanoTime() + timeout;
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (drain) {
+                        processEventQueue();
+                    }
+                    if (eventQueue.offer(event)) {
+                        return true;
+                    }
+                    long wait = BLOCK_WAIT_NANOS;
+                    if (timeout > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait = Math.min(wait, remaining);
+                    }
+                    LockSupport.parkNanos(this, wait);
+                }
+                return reject(event);
+            default:
+                return reject(event);
+        }
+    }
+
+    private boolean reject(Event event) {
+        DROPPED_EVENTS.incrementAndGet(this);
+        throw new RejectedExecutionException(mModel.getName() + " event queue is full, rejected "
+                + event.getName());
+    }
+
+    private int laneOf(Event event) {
+        if (mModel.isInternalEventsFirst() && CURRENT.get() == this) {
+            return EventLanes.INTERNAL;
+        }
+        int eventType = event.getType();
+        int[] eventLanes = mModel.getEventLanes();
+        if (eventLanes == null || eventType < 0 || eventType >= eventLanes.length) {
+            return EventLanes.laneOf(EventPriority.NORMAL);
+        }
+        return eventLanes[eventType];
+    }
+
+    /**
+     * The number of events dropped because the model doesn't handle them, see
+     * {@link StateMachine#setIgnoreUnknownEvents(boolean)}.
+     */
+    public long getIgnoredEventCount() {
+        return mIgnoredEvents;
+    }
+
+    // events which no state of the model handles or defers can be dropped before they are queued
+    private boolean ignores(int eventType) {
+        if (!mModel.isIgnoreUnknownEvents() || symbolOf(eventType) >= 0) {
+            return false;
+        }
+        IGNORED_EVENTS.incrementAndGet(this);
+        return true;
+    }
+
+    // Events dispatched right away by the thread which owns the in-progress flag are dropped as
+    // well when no active state handles or defers them.
+    private boolean ignoredByConfiguration(int eventType) {
+        if (!mModel.isIgnoreUnknownEvents()) {
+            return false;
+        }
+        int symbol = symbolOf(eventType);
+        if (symbol >= 0) {
+            Configuration.Chain chain = chain(symbol);
+            if (chain.mDeferred || chain.mStates.length > 0) {
+                return false;
+            }
+        }
+        IGNORED_EVENTS.incrementAndGet(this);
+        return true;
+    }
+
+    private void drop(Event event) {
+        DROPPED_EVENTS.incrementAndGet(this);
+        if (StateMachine.LOGGER.isDebugEnabled()) {
+            StateMachine.LOGGER.debug(mModel.getName() + " event queue is full, dropped " + event.getName());
+        }
+        if (event.getResult() != null) {
+            event.getResult().cancel(false);
+        }
+    }
+
+    private void processEventQueue() {
+        RuntimeException failure = drainEventQueue();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Handles the queued events until the queue is empty. An exception thrown by a guard or
+    // action of a synchronous event doesn't strand the events queued after it: the first one is
+    // returned once the queue is drained, later ones are suppressed by it.
+    private RuntimeException drainEventQueue() {
+        RuntimeException failure = null;
+        while (!isEventQueueEmpty() && EVENT_QUEUE_IN_PROGRESS.compareAndSet(this, 0, 1)) {
+            StateMachineInstance previous = bind();
+            try {
+                TransitionListener listener = mModel.getTransitionListener();
+                StateMachineMetrics metrics = mModel.getMetrics();
+                Queue<Event> eventQueue = mEventQueue;
+                Event event;
+                while ((event = eventQueue.poll()) != null) {
+                    resizeQueue(-1);
+                    if (event.getResult() != null) {
+                        dispatchAsync(event, listener, metrics);
+                        continue;
+                    }
+                    try {
+                        dispatch(event, listener, metrics);
+                    } catch (RuntimeException e) {
+                        if (failure == null) {
+                            failure = e;
+                        } else {
+                            failure.addSuppressed(e);
+                        }
+                    }
+                }
+            } finally {
+                unbind(previous);
+            }
+        }
+        if (mSnapshotPending) {
+            snapshotJournal();
+        }
+        return failure;
+    }
+
+    // Timeout events are not journaled, replaying would raise them at different times, so the
+    // transitions they cause are made durable by a snapshot once the instance is idle. If another
+    // thread is processing events, it takes the snapshot when it is done.
+    private void snapshotJournal() {
+        while (mSnapshotPending) {
+            mSnapshotPending = false;
+            EventJournal journal = mJournal;
+            if (journal == null || journal.snapshotIfIdle(this)) {
+                continue;
+            }
+            mSnapshotPending = true;
+            if (mEventQueueInProgress != 0) {
+                return;
+            }
+        }
+    }
+
+    private void dispatchAsync(Event event, TransitionListener listener, StateMachineMetrics metrics) {
+        try {
+            boolean handled = dispatch(event, listener, metrics);
+            if (mParked) {
+                return; // completed when the deferred event is handled
+            }
+            event.getResult().set(new EventResult(event.getName(), handled, getAllActiveStates()));
+        } catch (RuntimeException e) {
+            event.getResult().setException(e);
+        } catch (Error e) {
+            event.getResult().setException(e);
+            throw e;
+        }
+    }
+
+    // Dispatches the event, then the deferred events recalled by the transitions it caused.
+    private boolean dispatch(Event event, TransitionListener listener, StateMachineMetrics metrics) {
+        boolean handled = dispatchEvent(event, listener, metrics);
+        if (mRecalledEvents != null && !mRecalledEvents.isEmpty() && !mRecalling) {
+            boolean parked = mParked;
+            mRecalling = true;
+            try {
+                Event recalled;
+                while ((recalled = mRecalledEvents.poll()) != null) {
+                    if (recalled.getResult() == null) {
+                        dispatch(recalled, listener, metrics);
+                    } else {
+                        dispatchAsync(recalled, listener, metrics);
+                    }
+                }
+            } finally {
+                mRecalling = false;
+            }
+            mParked = parked;
+        }
+        return handled;
+    }
+
+    private boolean dispatchEvent(Event event, TransitionListener listener, StateMachineMetrics metrics) {
+        mParked = false;
+        if (event.getTimeout() != null && event.getTimeout().isDiscarded()) {
+            return false;
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (listener != null) {
+            listener.onEventReceived(this, event.getName(), event.getPayload());
+        }
+        mConfigurationChanged = false;
+        // no state handles or defers events outside of the alphabet of the model
+        int symbol = symbolOf(event.getType());
+        boolean handled = false;
+        boolean deferred = false;
+        if (symbol >= 0) {
+            Configuration.Chain chain = chain(symbol);
+            handled = chain.mWalk ? mModel.handleWithOverride(this, event) : handleChain(chain, event);
+            deferred = chain.mDeferred;
+        }
+        if (!handled) {
+            if (deferred) {
+                if (StateMachine.LOGGER.isDebugEnabled()) {
+                    StateMachine.LOGGER.debug(mModel.getName() + " deferred event: " + event.getName());
+                }
+                park(event);
+                return false;
+            }
+            if (StateMachine.LOGGER.isDebugEnabled()) {
+                StateMachine.LOGGER.debug(mModel.getName() + " nobody handled event: " + event.getName());
+            }
+            if (listener != null) {
+                listener.onEventUnhandled(this, event.getName(), event.getPayload());
+            }
+        } else if (mConfigurationChanged && mDeferredTypeCount > 0) {
+            recallDeferredEvents();
+        }
+        if (handled && event.getTimeout() != null && mJournal != null) {
+            mSnapshotPending = true;
+        }
+        if (metrics != null) {
+            metrics.recordEvent(event.getName(), System.nanoTime() - start, handled);
+        }
+        return handled;
+    }
+
+    // the dispatch chain of the event type in the current configuration, the configuration is
+    // looked up again after the active states changed
+    private Configuration.Chain chain(int symbol) {
+        int version = mConfigurationVersion;
+        if (mConfiguration == null || mConfigurationLookedUp != version) {
+            mConfiguration = mModel.configuration(mActiveStates);
+            mConfigurationLookedUp = version;
+        }
+        return mConfiguration.chain(symbol, mModel.getSymbolTypes()[symbol]);
+    }
+
+    private int symbolOf(int eventType) {
+        int[] symbols = mModel.getSymbols();
+        return eventType >= 0 && eventType < symbols.length ? symbols[eventType] : -1;
+    }
+
+    private boolean handleChain(Configuration.Chain chain, Event event) {
+        State[] states = chain.mStates;
+        for (int i = states.length - 1; i >= 0; i--) {
+            if (states[i].handle(this, event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // parking takes constant time, the reusable event and payload are copied
+    @SuppressWarnings("unchecked")
+    private void park(Event event) {
+        int eventType = event.getType();
+        if (event == mDispatchEvent) {
+            Map<String, Object> payload = event.getPayload() == mEmptyPayload
+                    ? new HashMap<String, Object>() : copyPayload(event.getPayload());
+            event = new Event(eventType, event.getName(), payload);
+        }
+        event.setSequence(mDeferredSequence++);
+        if (mDeferredEvents == null) {
+            mDeferredEvents = new ArrayDeque[eventType + 1];
+            mDeferredTypes = new int[4];
+        } else if (eventType >= mDeferredEvents.length) {
+            mDeferredEvents = Arrays.copyOf(mDeferredEvents, eventType + 1);
+        }
+        ArrayDeque<Event> events = mDeferredEvents[eventType];
+        if (events == null) {
+            events = new ArrayDeque<Event>();
+            mDeferredEvents[eventType] = events;
+        }
+        if (events.isEmpty()) {
+            if (mDeferredTypeCount == mDeferredTypes.length) {
+                mDeferredTypes = Arrays.copyOf(mDeferredTypes, mDeferredTypeCount * 2);
+            }
+            mDeferredTypes[mDeferredTypeCount++] = eventType;
+        }
+        events.add(event);
+        mParked = true;
+    }
+
+    // only the event types with deferred events are checked against the new configuration
+    private void recallDeferredEvents() {
+        List<Event> recalled = null;
+        for (int i = 0; i < mDeferredTypeCount; ) {
+            int eventType = mDeferredTypes[i];
+            if (chain(symbolOf(eventType)).mDeferred) {
+                i++;
+                continue;
+            }
+            if (recalled == null) {
+                recalled = new ArrayList<Event>();
+            }
+            recalled.addAll(mDeferredEvents[eventType]);
+            mDeferredEvents[eventType].clear();
+            mDeferredTypes[i] = mDeferredTypes[--mDeferredTypeCount];
+        }
+        if (recalled == null) {
+            return;
+        }
+        Collections.sort(recalled, SEQUENCE_ORDER);
+        if (mRecalledEvents == null) {
+            mRecalledEvents = new ArrayDeque<Event>();
+        }
+        mRecalledEvents.addAll(recalled);
+    }
+
+    // deferred and recalled events in the order in which they were deferred
+    private List<Event> deferredEvents() {
+        List<Event> events = new ArrayList<Event>();
+        if (mRecalledEvents != null) {
+            events.addAll(mRecalledEvents);
+        }
+        for (int i = 0; i < mDeferredTypeCount; i++) {
+            events.addAll(mDeferredEvents[mDeferredTypes[i]]);
+        }
+        Collections.sort(events, SEQUENCE_ORDER);
+        return events;
+    }
+
+    private void clearDeferredEvents() {
+        for (Event event : deferredEvents()) {
+            if (event.getResult() != null) {
+                event.getResult().cancel(false);
+            }
+        }
+        for (int i = 0; i < mDeferredTypeCount; i++) {
+            mDeferredEvents[mDeferredTypes[i]].clear();
+        }
+        mDeferredTypeCount = 0;
+        if (mRecalledEvents != null) {
+            mRecalledEvents.clear();
+        }
+    }
+
+    private static final Comparator<Event> SEQUENCE_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event lhs, Event rhs) {
+            return lhs.getSequence() < rhs.getSequence() ? -1 : (lhs.getSequence() == rhs.getSequence() ? 0 : 1);
+        }
+    };
+}
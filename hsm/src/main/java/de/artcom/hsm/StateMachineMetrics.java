@@ -0,0 +1,159 @@
+package de.artcom.hsm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects event latencies, state dwell times, transition and unhandled event counts and the
+ * event queue depth of the state machines it is attached to. Recording is lock-free, so one
+ * instance can be shared by many state machines and read while they are running.
+ */
+public class StateMachineMetrics {
+
+    private final ConcurrentMap<String, LatencyHistogram> mEventLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    // keyed by the state itself, ids are only unique within a state machine
+    private final ConcurrentMap<State, LatencyHistogram> mDwellTimes = new ConcurrentHashMap<State, LatencyHistogram>();
+    private final ConcurrentMap<Handler, TransitionCounter> mTransitionCounts = new ConcurrentHashMap<Handler, TransitionCounter>();
+    private final ConcurrentMap<String, AtomicLong> mUnhandledCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    public Map<String, LatencyHistogram.Snapshot> getEventLatencies() {
+        return snapshot(mEventLatencies);
+    }
+
+    /**
+     * The dwell times by the path of the state, the ids of its enclosing states and its own id
+     * separated by '/'. States with the same path, in sibling regions or in other state machines
+     * sharing these metrics, are reported together.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getDwellTimes() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new HashMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<State, LatencyHistogram> entry : mDwellTimes.entrySet()) {
+            String path = pathOf(entry.getKey());
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+            LatencyHistogram.Snapshot other = snapshots.get(path);
+            snapshots.put(path, other == null ? snapshot : other.merge(snapshot));
+        }
+        return snapshots;
+    }
+
+    public LatencyHistogram.Snapshot getDwellTime(State state) {
+        LatencyHistogram histogram = mDwellTimes.get(state);
+        return histogram == null ? new LatencyHistogram().snapshot() : histogram.snapshot();
+    }
+
+    public Map<String, Long> getTransitionCounts() {
+        Map<String, Long> transitionCounts = new HashMap<String, Long>();
+        for (TransitionCounter counter : mTransitionCounts.values()) {
+            Long count = transitionCounts.get(counter.mLabel);
+            transitionCounts.put(counter.mLabel, counter.mCount.get() + (count == null ? 0 : count));
+        }
+        return transitionCounts;
+    }
+
+    public Map<String, Long> getUnhandledCounts() {
+        Map<String, Long> unhandledCounts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : mUnhandledCounts.entrySet()) {
+            unhandledCounts.put(entry.getKey(), entry.getValue().get());
+        }
+        return unhandledCounts;
+    }
+
+    // the events queued by all instances
+    public int getQueueDepth() {
+        return Math.max(0, mQueueDepth.get());
+    }
+
+    // the deepest queue of any instance
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    void recordEvent(String eventName, long nanos, boolean handled) {
+        histogram(mEventLatencies, eventName).record(nanos);
+        if (!handled) {
+            AtomicLong count = mUnhandledCounts.get(eventName);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = mUnhandledCounts.putIfAbsent(eventName, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    void recordDwellTime(State state, long nanos) {
+        histogram(mDwellTimes, state).record(nanos);
+    }
+
+    void recordTransition(State source, String eventName, Handler handler) {
+        TransitionCounter counter = mTransitionCounts.get(handler);
+        if (counter == null) {
+            TransitionCounter newCounter = new TransitionCounter(source, eventName, handler);
+            counter = mTransitionCounts.putIfAbsent(handler, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.mCount.incrementAndGet();
+    }
+
+    // the queue of one instance changed by delta to depth
+    void recordQueueDepth(int delta, int depth) {
+        mQueueDepth.addAndGet(delta);
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxQueueDepth.get();
+        }
+    }
+
+    private static <K> LatencyHistogram histogram(ConcurrentMap<K, LatencyHistogram> histograms, K key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    private static Map<String, LatencyHistogram.Snapshot> snapshot(ConcurrentMap<String, LatencyHistogram> histograms) {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new HashMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    private static String pathOf(State state) {
+        StringBuilder path = new StringBuilder(state.getId());
+        StateMachine owner = state.getOwner();
+        State container = owner != null ? owner.getContainer() : null;
+        while (container != null) {
+            path.insert(0, '/').insert(0, container.getId());
+            owner = container.getOwner();
+            container = owner != null ? owner.getContainer() : null;
+        }
+        return path.toString();
+    }
+
+    private static class TransitionCounter {
+
+        private final String mLabel;
+        private final AtomicLong mCount = new AtomicLong();
+
+        TransitionCounter(State source, String eventName, Handler handler) {
+            State target = handler.getTargetState();
+            mLabel = source.getId() + " -" + eventName + "-> " + (target == null ? null : target.getId());
+        }
+    }
+}
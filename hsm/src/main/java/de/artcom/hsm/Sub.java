@@ -1,7 +1,6 @@
 package de.artcom.hsm;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -27,23 +26,23 @@ public class Sub extends State<Sub> {
     }
 
     @Override
-    void enter(State prev, State next, Map<String, Object> payload) {
-        super.enter(prev, next, payload);
-        mSubMachine.enterState(prev, next, payload);
+    void enter(StateMachineInstance instance, State prev, State next, Map<String, Object> payload) {
+        super.enter(instance, prev, next, payload);
+        mSubMachine.enterState(instance, prev, next, payload);
     }
 
     @Override
-    void exit(State prev, State next, Map<String, Object> payload) {
-        mSubMachine.teardown(payload);
-        super.exit(prev, next, payload);
+    void exit(StateMachineInstance instance, State prev, State next, Map<String, Object> payload) {
+        mSubMachine.teardown(instance, payload);
+        super.exit(instance, prev, next, payload);
     }
 
     @Override
-    boolean handleWithOverride(Event event) {
-        if (mSubMachine.handleWithOverride(event)) {
+    boolean handleWithOverride(StateMachineInstance instance, Event event) {
+        if (mSubMachine.handleWithOverride(instance, event)) {
             return true;
         } else {
-            return super.handleWithOverride(event);
+            return super.handleWithOverride(instance, event);
         }
     }
 
@@ -52,20 +51,30 @@ public class Sub extends State<Sub> {
         return getId() + "/(" + mSubMachine.toString() + ")";
     }
 
+    @Override
+    String toString(StateMachineInstance instance) {
+        return getId() + "/(" + mSubMachine.toString(instance) + ")";
+    }
+
     @Override
     void addParent(StateMachine stateMachine) {
         mSubMachine.addParent(stateMachine);
     }
 
     @Override
-    Collection<? extends State> getDescendantStates() {
-        return mSubMachine.getDescendantStates();
+    void indexSubMachines(List<StateMachine> stateMachines, List<State> states) {
+        mSubMachine.index(stateMachines, states);
     }
 
     public List<State> getAllActiveStates() {
         return mSubMachine.getAllActiveStates();
     }
 
+    @Override
+    List<State> getAllActiveStates(StateMachineInstance instance) {
+        return mSubMachine.getAllActiveStates(instance);
+    }
+
     @Override
     void setOwner(StateMachine ownerMachine) {
         super.setOwner(ownerMachine);
@@ -0,0 +1,78 @@
+package de.artcom.hsm;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// A timeout armed in a timing wheel for the active state of one state machine of an instance.
+// The timeout is discarded when the state is exited. Even an already expired timeout is then
+// ignored when its event is dispatched.
+final class Timeout implements Runnable {
+
+    static final int ARMED = 0;
+    static final int CANCELLED = 1;
+    static final int EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "mState");
+
+    private final StateMachineInstance mInstance;
+    private final int mEventType;
+    private final String mEventName;
+    private final long mDeadline;
+    private volatile int mState;
+    private volatile boolean mDiscarded;
+
+    // next timeout armed for the same state machine of the instance
+    Timeout mNextInMachine;
+
+    // bucket list of the timing wheel, only used by its worker thread
+    long mRemainingRounds;
+    Timeout mPrevious;
+    Timeout mNext;
+    TimingWheel.Bucket mBucket;
+
+    Timeout(StateMachineInstance instance, int eventType, String eventName, long deadline) {
+        mInstance = instance;
+        mEventType = eventType;
+        mEventName = eventName;
+        mDeadline = deadline;
+    }
+
+    int getEventType() {
+        return mEventType;
+    }
+
+    String getEventName() {
+        return mEventName;
+    }
+
+    long getDeadline() {
+        return mDeadline;
+    }
+
+    boolean cancel() {
+        return STATE.compareAndSet(this, ARMED, CANCELLED);
+    }
+
+    boolean expire() {
+        return STATE.compareAndSet(this, ARMED, EXPIRED);
+    }
+
+    boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    void discard() {
+        mDiscarded = true;
+    }
+
+    boolean isDiscarded() {
+        return mDiscarded;
+    }
+
+    @Override
+    public void run() {
+        if (!mDiscarded) {
+            mInstance.handleTimeout(this);
+        }
+    }
+}
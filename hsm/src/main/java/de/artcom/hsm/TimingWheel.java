@@ -0,0 +1,212 @@
+package de.artcom.hsm;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel which drives the timeouts of states. Arming and cancelling a timeout take
+ * constant time: both only hand the timeout to the worker thread, which sorts new timeouts into
+ * the buckets of the wheel and unlinks cancelled ones once per tick. Timeouts further away than
+ * one turn of the wheel wait for the remaining number of turns in their bucket. Expired timeouts
+ * are handled on the executor, so slow actions don't delay the wheel.
+ */
+public class TimingWheel {
+
+    private static final int INIT = 0;
+    private static final int STARTED = 1;
+    private static final int STOPPED = 2;
+
+    private final long mTickNanos;
+    private final Bucket[] mBuckets;
+    private final int mMask;
+    private final Executor mExecutor;
+    private final Queue<Timeout> mArmed = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> mCancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger mWorkerState = new AtomicInteger(INIT);
+    private final long mStartTime;
+    private long mTick;
+
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+        if (wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("Wheel size out of range: " + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        mBuckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mBuckets[i] = new Bucket();
+        }
+        mMask = size - 1;
+        mTickNanos = unit.toNanos(tickDuration);
+        mExecutor = executor;
+        mStartTime = System.nanoTime();
+    }
+
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        this(tickDuration, unit, wheelSize, AsyncExecutor.getDefault());
+    }
+
+    /**
+     * Wheel shared by all state machines without their own: 10 ms ticks, 512 buckets.
+     */
+    public static TimingWheel getDefault() {
+        return Holder.WHEEL;
+    }
+
+    Timeout arm(StateMachineInstance instance, int eventType, String eventName, long delayNanos) {
+        if (mWorkerState.get() == INIT && mWorkerState.compareAndSet(INIT, STARTED)) {
+            Thread worker = new Thread(new Worker(), "hsm-timing-wheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Timeout timeout = new Timeout(instance, eventType, eventName, System.nanoTime() - mStartTime + delayNanos);
+        if (mWorkerState.get() == STOPPED) {
+            StateMachine.LOGGER.warn("Timing wheel is stopped, dropped timeout " + eventName);
+            timeout.discard();
+            timeout.cancel();
+            return timeout;
+        }
+        mArmed.add(timeout);
+        // stopped meanwhile, the worker won't take the timeout anymore
+        if (mWorkerState.get() == STOPPED) {
+            mArmed.remove(timeout);
+        }
+        return timeout;
+    }
+
+    void cancel(Timeout timeout) {
+        timeout.discard();
+        if (timeout.cancel()) {
+            mCancelled.add(timeout);
+        }
+    }
+
+    /**
+     * Stops the worker thread, timeouts which have not expired yet are dropped. Timeouts armed
+     * afterwards are dropped right away.
+     */
+    public void stop() {
+        mWorkerState.set(STOPPED);
+        mArmed.clear();
+        mCancelled.clear();
+    }
+
+    static final class Bucket {
+
+        private Timeout mHead;
+        private Timeout mTail;
+
+        void add(Timeout timeout) {
+            timeout.mBucket = this;
+            if (mHead == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrevious = mTail;
+                mTail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.mNext;
+            if (timeout.mPrevious != null) {
+                timeout.mPrevious.mNext = next;
+            }
+            if (next != null) {
+                next.mPrevious = timeout.mPrevious;
+            }
+            if (timeout == mHead) {
+                mHead = next;
+            }
+            if (timeout == mTail) {
+                mTail = timeout.mPrevious;
+            }
+            timeout.mPrevious = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+            return next;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (mWorkerState.get() == STARTED) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    continue;
+                }
+                removeCancelled();
+                transferArmed();
+                expire(mBuckets[(int) (mTick & mMask)], deadline);
+                mTick++;
+            }
+        }
+
+        // the time of the tick relative to the start of the wheel, -1 if interrupted
+        private long waitForNextTick() {
+            long deadline = mTickNanos * (mTick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - mStartTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+            return deadline;
+        }
+
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = mCancelled.poll()) != null) {
+                Bucket bucket = timeout.mBucket;
+                if (bucket != null) {
+                    bucket.remove(timeout);
+                }
+            }
+        }
+
+        private void transferArmed() {
+            Timeout timeout;
+            while ((timeout = mArmed.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                long ticks = timeout.getDeadline() / mTickNanos;
+                timeout.mRemainingRounds = (ticks - mTick) / mBuckets.length;
+                mBuckets[(int) (Math.max(ticks, mTick) & mMask)].add(timeout);
+            }
+        }
+
+        private void expire(Bucket bucket, long deadline) {
+            Timeout timeout = bucket.mHead;
+            while (timeout != null) {
+                if (timeout.mRemainingRounds <= 0 && timeout.getDeadline() <= deadline) {
+                    Timeout next = bucket.remove(timeout);
+                    if (timeout.expire()) {
+                        mExecutor.execute(timeout);
+                    }
+                    timeout = next;
+                } else {
+                    timeout.mRemainingRounds--;
+                    timeout = timeout.mNext;
+                }
+            }
+        }
+    }
+
+    private static final class Holder {
+
+        static final TimingWheel WHEEL = new TimingWheel(10, TimeUnit.MILLISECONDS, 512);
+    }
+}
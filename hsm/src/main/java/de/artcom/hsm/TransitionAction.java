@@ -0,0 +1,11 @@
+package de.artcom.hsm;
+
+/**
+ * Action which receives the transition as a {@link TransitionContext} instead of through fields.
+ * It keeps no state between calls, so a single instance can be shared by models and by state
+ * machine instances running on different threads.
+ */
+public interface TransitionAction {
+
+    public void run(TransitionContext context);
+}
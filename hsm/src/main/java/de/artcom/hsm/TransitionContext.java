@@ -0,0 +1,59 @@
+package de.artcom.hsm;
+
+import java.util.Map;
+
+public final class TransitionContext {
+
+    private final State mPreviousState;
+    private final State mNextState;
+    private final Map<String, Object> mPayload;
+    private final EventHandler mEventHandler;
+
+    TransitionContext(State previousState, State nextState, Map<String, Object> payload, EventHandler eventHandler) {
+        mPreviousState = previousState;
+        mNextState = nextState;
+        mPayload = payload;
+        mEventHandler = eventHandler;
+    }
+
+    public State getPreviousState() {
+        return mPreviousState;
+    }
+
+    public State getNextState() {
+        return mNextState;
+    }
+
+    public Map<String, Object> getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * The payload with typed access, without copying if the event was raised with a
+     * {@link Payload}.
+     */
+    public Payload getTypedPayload() {
+        return Payload.of(mPayload);
+    }
+
+    /**
+     * The state machine instance running the transition. Events raised through it are queued
+     * and handled after the current event.
+     */
+    public EventHandler getEventHandler() {
+        return mEventHandler;
+    }
+
+    // legacy actions get the transition through their fields, so they don't need a context
+    static void execute(TransitionAction action, State previousState, State nextState,
+                        Map<String, Object> payload, EventHandler eventHandler) {
+        if (action == null) {
+            return;
+        }
+        if (action instanceof Action) {
+            ((Action) action).execute(previousState, nextState, payload);
+        } else {
+            action.run(new TransitionContext(previousState, nextState, payload, eventHandler));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package de.artcom.hsm;
+
+import java.util.Map;
+
+/**
+ * Receives typed callbacks about event processing and state changes. Listeners are registered on
+ * the top-level state machine and are invoked on the thread which processes the event. The
+ * regions of a {@link Parallel} state which runs {@link Parallel#concurrently concurrently}
+ * invoke them from the threads of its pool, concurrently with each other, so listeners of such
+ * models have to be thread-safe. Every callback receives the instance whose event is processed,
+ * the model is {@link StateMachineInstance#getModel()}.
+ */
+public abstract class TransitionListener {
+
+    public void onBatchReceived(StateMachineInstance instance, int size) {
+    }
+
+    public void onEventReceived(StateMachineInstance instance, String eventName, Map<String, Object> payload) {
+    }
+
+    public void onHandlerSelected(StateMachineInstance instance, State state, String eventName, State targetState, TransitionKind kind) {
+    }
+
+    public void onGuardRejected(StateMachineInstance instance, State state, String eventName, State targetState) {
+    }
+
+    public void onStateExited(StateMachineInstance instance, State state) {
+    }
+
+    public void onStateEntered(StateMachineInstance instance, State state) {
+    }
+
+    public void onEventUnhandled(StateMachineInstance instance, String eventName, Map<String, Object> payload) {
+    }
+}
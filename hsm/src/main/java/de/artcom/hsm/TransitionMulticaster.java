@@ -0,0 +1,101 @@
+package de.artcom.hsm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+// Immutable, adding or removing a listener creates a new multicaster, so concurrent regions of a
+// Parallel state may call it at the same time.
+final class TransitionMulticaster extends TransitionListener {
+
+    private final TransitionListener[] mListeners;
+
+    private TransitionMulticaster(TransitionListener[] listeners) {
+        mListeners = listeners;
+    }
+
+    static TransitionListener add(TransitionListener current, TransitionListener listener) {
+        if (current == null) {
+            return listener;
+        }
+        TransitionListener[] listeners;
+        if (current instanceof TransitionMulticaster) {
+            TransitionListener[] currentListeners = ((TransitionMulticaster) current).mListeners;
+            listeners = Arrays.copyOf(currentListeners, currentListeners.length + 1);
+        } else {
+            listeners = new TransitionListener[] { current, null };
+        }
+        listeners[listeners.length - 1] = listener;
+        return new TransitionMulticaster(listeners);
+    }
+
+    static TransitionListener remove(TransitionListener current, TransitionListener listener) {
+        if (current == listener) {
+            return null;
+        }
+        if (!(current instanceof TransitionMulticaster)) {
+            return current;
+        }
+        TransitionListener[] currentListeners = ((TransitionMulticaster) current).mListeners;
+        for (int i = 0; i < currentListeners.length; i++) {
+            if (currentListeners[i] == listener) {
+                if (currentListeners.length == 2) {
+                    return currentListeners[1 - i];
+                }
+                TransitionListener[] listeners = new TransitionListener[currentListeners.length - 1];
+                System.arraycopy(currentListeners, 0, listeners, 0, i);
+                System.arraycopy(currentListeners, i + 1, listeners, i, listeners.length - i);
+                return new TransitionMulticaster(listeners);
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void onBatchReceived(StateMachineInstance instance, int size) {
+        for (TransitionListener listener : mListeners) {
+            listener.onBatchReceived(instance, size);
+        }
+    }
+
+    @Override
+    public void onEventReceived(StateMachineInstance instance, String eventName, Map<String, Object> payload) {
+        for (TransitionListener listener : mListeners) {
+            listener.onEventReceived(instance, eventName, payload);
+        }
+    }
+
+    @Override
+    public void onHandlerSelected(StateMachineInstance instance, State state, String eventName, State targetState, TransitionKind kind) {
+        for (TransitionListener listener : mListeners) {
+            listener.onHandlerSelected(instance, state, eventName, targetState, kind);
+        }
+    }
+
+    @Override
+    public void onGuardRejected(StateMachineInstance instance, State state, String eventName, State targetState) {
+        for (TransitionListener listener : mListeners) {
+            listener.onGuardRejected(instance, state, eventName, targetState);
+        }
+    }
+
+    @Override
+    public void onStateExited(StateMachineInstance instance, State state) {
+        for (TransitionListener listener : mListeners) {
+            listener.onStateExited(instance, state);
+        }
+    }
+
+    @Override
+    public void onStateEntered(StateMachineInstance instance, State state) {
+        for (TransitionListener listener : mListeners) {
+            listener.onStateEntered(instance, state);
+        }
+    }
+
+    @Override
+    public void onEventUnhandled(StateMachineInstance instance, String eventName, Map<String, Object> payload) {
+        for (TransitionListener listener : mListeners) {
+            listener.onEventUnhandled(instance, eventName, payload);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package de.artcom.hsm.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.EventResult;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class AsyncEventHandlingTest {
+
+    @Test
+    public void actionsRunOnExecutor() throws Exception {
+        // given:
+        final Thread caller = Thread.currentThread();
+        final Thread[] actionThread = new Thread[1];
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(new Action() {
+            @Override
+            public void run() {
+                actionThread[0] = Thread.currentThread();
+            }
+        });
+        Sub a = new Sub("a", a1, a2);
+        a1.addHandler("T1", a2, TransitionKind.External);
+        StateMachine sm = new StateMachine(a);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        sm.setExecutor(executor);
+        sm.init();
+
+        // when:
+        EventResult result = sm.handleEventAsync("T1").get();
+
+        // then:
+        assertThat(result.isHandled(), equalTo(true));
+        assertThat(result.getActiveStates(), hasItems((State) a, a2));
+        assertThat(result.getActiveStates(), not(hasItems((State) a1)));
+        assertThat(actionThread[0] == caller, equalTo(false));
+        executor.shutdown();
+    }
+
+    @Test
+    public void unhandledEventCompletesUnhandled() throws Exception {
+        // given:
+        State a = new State("a");
+        StateMachine sm = new StateMachine(a);
+        sm.init();
+
+        // when:
+        EventResult result = sm.handleEventAsync("T1").get();
+
+        // then:
+        assertThat(result.isHandled(), equalTo(false));
+        assertThat(result.getEventName(), equalTo("T1"));
+    }
+
+    @Test
+    public void failingActionCompletesExceptionally() throws Exception {
+        // given:
+        State a = new State("a");
+        State b = new State("b");
+        a.addHandler("T1", b, TransitionKind.External, new Action() {
+            @Override
+            public void run() {
+                throw new IllegalArgumentException("failed");
+            }
+        });
+        b.addHandler("T2", a, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        sm.init();
+
+        // when:
+        Future<EventResult> failed = sm.handleEventAsync("T1");
+        Future<EventResult> next = sm.handleEventAsync("T2");
+
+        // then:
+        try {
+            failed.get();
+            Assert.fail("expected the action exception");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IllegalArgumentException, equalTo(true));
+        }
+        assertThat(next.get().getEventName(), equalTo("T2"));
+    }
+
+    @Test
+    public void rejectedDrainCompletesExceptionally() throws Exception {
+        // given:
+        final boolean[] rejecting = {true};
+        State a = new State("a");
+        State b = new State("b");
+        a.addHandler("T1", b, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        sm.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (rejecting[0]) {
+                    throw new RejectedExecutionException("shut down");
+                }
+                command.run();
+            }
+        });
+        sm.init();
+
+        // when:
+        Future<EventResult> rejected = sm.handleEventAsync("T1");
+        rejecting[0] = false;
+        EventResult next = sm.handleEventAsync("T1").get(5, TimeUnit.SECONDS);
+
+        // then:
+        try {
+            rejected.get();
+            Assert.fail("expected the rejection of the executor");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof RejectedExecutionException, equalTo(true));
+        }
+        assertThat(next.isHandled(), equalTo(true));
+        assertThat(sm.toString(), equalTo("b"));
+    }
+
+    @Test
+    public void teardownCancelsQueuedEvents() throws Exception {
+        // given:
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        Action enterB = mock(Action.class);
+        State a = new State("a");
+        State b = new State("b").onEnter(enterB);
+        a.addHandler("T1", b, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        sm.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        sm.init();
+        Future<EventResult> queued = sm.handleEventAsync("T1");
+
+        // when:
+        sm.teardown();
+        for (Runnable command : scheduled) {
+            command.run();
+        }
+
+        // then:
+        assertThat(queued.isCancelled(), equalTo(true));
+        assertThat(sm.getQueueDepth(), equalTo(0));
+        verify(enterB, never()).run();
+    }
+
+    @Test
+    public void failingQueuedEventDoesntStrandTheFollowingEvents() throws Exception {
+        // given:
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch slowReleased = new CountDownLatch(1);
+        final RuntimeException[] consumerFailure = new RuntimeException[1];
+        State a = new State("a");
+        State b = new State("b");
+        a.addHandler("slow", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                slowStarted.countDown();
+                try {
+                    slowReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        a.addHandler("boom", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        a.addHandler("T1", b, TransitionKind.External);
+        final StateMachine sm = new StateMachine(a, b);
+        // the drain is never run, the consumer handles the queued events
+        sm.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+            }
+        });
+        sm.init();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sm.handleEvent("slow");
+                } catch (RuntimeException e) {
+                    consumerFailure[0] = e;
+                }
+            }
+        });
+        consumer.start();
+        slowStarted.await(5, TimeUnit.SECONDS);
+
+        // when:
+        sm.handleEvent("boom");
+        Future<EventResult> queued = sm.handleEventAsync("T1");
+        slowReleased.countDown();
+        consumer.join(5000);
+
+        // then:
+        assertThat(queued.get(5, TimeUnit.SECONDS).isHandled(), equalTo(true));
+        assertThat(sm.toString(), equalTo("b"));
+        assertThat(consumerFailure[0].getMessage(), equalTo("boom"));
+    }
+}
@@ -7,11 +7,13 @@ import org.mockito.InOrder;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import de.artcom.hsm.Action;
 import de.artcom.hsm.Parallel;
 import de.artcom.hsm.State;
 import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
 import de.artcom.hsm.Sub;
 import de.artcom.hsm.TransitionKind;
 
@@ -243,6 +245,32 @@ public class BasicStateMachineTest {
         verifyZeroInteractions(onExitAction);
     }
 
+    @Test
+    public void modelCantChangeOnceInitialized() {
+        // given:
+        State off = new State("off");
+        State on = new State("on").addHandler("toggle", off, TransitionKind.External);
+        StateMachine sm = new StateMachine(on, off);
+        sm.init();
+
+        // when:
+        try {
+            off.addHandler("toggle", on, TransitionKind.External);
+            Assert.fail("expected IllegalStateException since the model is in use");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            sm.setInternalEventsFirst(true);
+            Assert.fail("expected IllegalStateException since the model is in use");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            on.addTimeout(1, TimeUnit.SECONDS, "toggle");
+            Assert.fail("expected IllegalStateException since the model is in use");
+        } catch (IllegalStateException e) {
+        }
+    }
+
     @Test
     public void noMatchingStateAvailable() {
         // given:
@@ -339,4 +367,81 @@ public class BasicStateMachineTest {
         assertThat(allActiveStates, not(hasItems(a33)));
     }
 
+    @Test
+    public void instancesOfOneModelHaveIndependentStates() {
+        // given:
+        State b1 = new State("b1");
+        State b2 = new State("b2");
+        Sub b = new Sub("b", b1, b2);
+        State a = new State("a");
+        final StateMachine model = new StateMachine(a, b);
+        a.addHandler("T1", b, TransitionKind.External, new Action() {
+            @Override
+            public void run() {
+                model.handleEvent("T2");
+            }
+        });
+        b1.addHandler("T2", b2, TransitionKind.External);
+        StateMachineInstance first = model.newInstance();
+        StateMachineInstance second = model.newInstance();
+        first.init();
+        second.init();
+
+        // when:
+        first.handleEvent("T1");
+
+        // then:
+        assertThat(first.toString(), equalTo("b/(b2)"));
+        assertThat(second.toString(), equalTo("a"));
+        assertThat(first.getAllActiveStates(), hasItems(b, b2));
+        assertThat(second.getAllActiveStates(), not(hasItems(b)));
+    }
+
+    @Test
+    public void canQueryAncestryAndActiveStates() {
+        // given:
+        State a11 = new State("a11");
+        State a22 = new State("a22");
+        State a33 = new State("a33");
+        Parallel a1 = new Parallel("a1", new StateMachine(a11), new StateMachine(a22, a33));
+        Sub a = new Sub("a", a1);
+        State b = new State("b");
+        StateMachine sm = new StateMachine(a, b);
+        sm.init();
+
+        // then:
+        assertThat(a22.isDescendantOf(a), equalTo(true));
+        assertThat(a22.isDescendantOf(a1), equalTo(true));
+        assertThat(a1.isDescendantOf(a22), equalTo(false));
+        assertThat(a.isDescendantOf(a), equalTo(false));
+        assertThat(b.isDescendantOf(a), equalTo(false));
+        assertThat(sm.isActive(a22), equalTo(true));
+        assertThat(sm.isActive(a33), equalTo(false));
+        assertThat(sm.isActive(b), equalTo(false));
+    }
+
+    @Test
+    public void activeStatesAreCachedUntilTransition() {
+        // given:
+        State a1 = new State("a1");
+        State a2 = new State("a2");
+        Sub a = new Sub("a", a1, a2);
+        a1.addHandler("T1", a2, TransitionKind.External);
+        StateMachine sm = new StateMachine(a);
+        sm.init();
+        List<State> before = sm.getAllActiveStates();
+
+        // when:
+        List<State> polled = sm.getAllActiveStates();
+        sm.handleEvent("T1");
+        List<State> after = sm.getAllActiveStates();
+
+        // then:
+        assertThat(polled == before, equalTo(true));
+        assertThat(after == before, equalTo(false));
+        assertThat(after, hasItems((State) a, a2));
+        assertThat(sm.toString(), equalTo("a/(a2)"));
+        assertThat(sm.toString() == sm.toString(), equalTo(true));
+    }
+
 }
@@ -0,0 +1,75 @@
+package de.artcom.hsm.test;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentEventHandlingTest {
+
+    private static final int PRODUCERS = 8;
+    private static final int EVENTS_PER_PRODUCER = 2000;
+
+    @Test
+    public void eventsFromManyThreadsAreHandledOneAtATime() throws InterruptedException {
+        // given:
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final int[] handled = new int[1];
+        State a = new State("a");
+        State b = new State("b");
+        Action countAction = new Action() {
+            @Override
+            public void run() {
+                if (running.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                handled[0]++;
+                running.decrementAndGet();
+            }
+        };
+        a.addHandler("toggle", b, TransitionKind.External, countAction);
+        b.addHandler("toggle", a, TransitionKind.External, countAction);
+        final StateMachine sm = new StateMachine(a, b);
+        sm.init();
+
+        // when:
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < EVENTS_PER_PRODUCER; j++) {
+                        sm.handleEvent("toggle");
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        // then:
+        assertThat(overlaps.get(), equalTo(0));
+        assertThat(handled[0], equalTo(PRODUCERS * EVENTS_PER_PRODUCER));
+    }
+}
@@ -0,0 +1,122 @@
+package de.artcom.hsm.test;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.EventResult;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DeferredEventTest {
+
+    private final List<String> mHandled = new ArrayList<String>();
+
+    private StateMachine createStateMachine() {
+        State idle = new State("idle");
+        State working = new State("working");
+        Sub busy = new Sub("busy", working).defer("job");
+        idle.addHandler("job", busy, TransitionKind.External, new Action() {
+            @Override
+            public void run() {
+                mHandled.add("job " + mPayload.get("id"));
+            }
+        });
+        working.addHandler("done", idle, TransitionKind.External);
+        busy.addHandler("other", busy, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                mHandled.add("other");
+            }
+        });
+        return new StateMachine(idle, busy);
+    }
+
+    @Test
+    public void deferredEventsAreHandledAfterLeavingDeferringState() {
+        // given:
+        StateMachine sm = createStateMachine();
+        sm.init();
+        sm.handleEvent("job", id(1));
+
+        // when:
+        sm.handleEvent("job", id(2));
+        sm.handleEvent("other");
+        sm.handleEvent("job", id(3));
+        sm.handleEvent("done");
+
+        // then:
+        assertThat(mHandled, equalTo(Arrays.asList("job 1", "other", "job 2")));
+        assertThat(sm.toString(), equalTo("busy/(working)"));
+
+        // when:
+        sm.handleEvent("done");
+
+        // then:
+        assertThat(mHandled, equalTo(Arrays.asList("job 1", "other", "job 2", "job 3")));
+    }
+
+    @Test
+    public void deferredAsyncEventCompletesWhenHandled() throws Exception {
+        // given:
+        StateMachine sm = createStateMachine();
+        sm.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        sm.init();
+        sm.handleEvent("job", id(1));
+
+        // when:
+        Future<EventResult> result = sm.handleEventAsync("job", id(2));
+
+        // then:
+        assertThat(result.isDone(), equalTo(false));
+
+        // when:
+        sm.handleEvent("done");
+
+        // then:
+        assertThat(result.isDone(), equalTo(true));
+        assertThat(result.get().isHandled(), equalTo(true));
+    }
+
+    @Test
+    public void snapshotContainsDeferredEvents() {
+        // given:
+        StateMachine model = createStateMachine();
+        model.init();
+        model.handleEvent("job", id(1));
+        model.handleEvent("job", id(2));
+        byte[] snapshot = model.snapshot();
+
+        // when:
+        StateMachineInstance restored = model.newInstance();
+        restored.restore(snapshot);
+        restored.handleEvent("done");
+
+        // then:
+        assertThat(mHandled, equalTo(Arrays.asList("job 1", "job 2")));
+    }
+
+    private static Map<String, Object> id(int id) {
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("id", id);
+        return payload;
+    }
+}
@@ -5,17 +5,28 @@ import org.hamcrest.collection.IsMapContaining;
 import org.hamcrest.core.IsEqual;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import de.artcom.hsm.Action;
+import de.artcom.hsm.EventBatch;
+import de.artcom.hsm.EventGuard;
+import de.artcom.hsm.EventTypes;
 import de.artcom.hsm.Guard;
 import de.artcom.hsm.State;
 import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.StateMachineMetrics;
 import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionAction;
+import de.artcom.hsm.TransitionContext;
 import de.artcom.hsm.TransitionKind;
 
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
@@ -216,26 +227,223 @@ public class EventHandlingTest {
         sm.init();
         sm.handleEvent("T1");
     }
-}
 
+    @Test
+    public void canHandleInternedEventType() {
+        // given:
+        Action enterA2 = mock(Action.class);
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(enterA2);
+        a1.addHandler("T1", a2, TransitionKind.External);
+        StateMachine sm = new StateMachine(a1, a2);
+        sm.init();
+        int t1 = EventTypes.lookup("T1");
 
+        // when:
+        sm.handleEvent(t1);
 
+        // then:
+        assertThat(EventTypes.nameOf(t1), equalTo("T1"));
+        assertThat(EventTypes.intern("T1"), equalTo(t1));
+        verify(enterA2).run();
+    }
 
+    @Test
+    public void handleEventWithNullPayload() {
+        // given:
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(new Action() {
+            @Override
+            public void run() {
+                // then:
+                assertThat(mPayload, notNullValue());
+                assertThat(mPayload.isEmpty(), equalTo(true));
+            }
+        });
+        a1.addHandler("T1", a2, TransitionKind.External);
+        StateMachine sm = new StateMachine(a1, a2);
+        sm.init();
 
+        // when:
+        sm.handleEvent("T1", null);
+    }
 
+    @Test
+    public void handleEventBatch() {
+        // given:
+        final List<String> handled = new ArrayList<String>();
+        State a = new State("a");
+        State b = new State("b");
+        final StateMachine sm = new StateMachine(a, b);
+        a.addHandler("T1", b, TransitionKind.External, new Action() {
+            @Override
+            public void run() {
+                handled.add("T1");
+                sm.handleEvent("raised");
+            }
+        });
+        b.addHandler("T2", a, TransitionKind.External, new Action() {
+            @Override
+            public void run() {
+                handled.add("T2 " + mPayload.get("foo"));
+            }
+        });
+        a.addHandler("raised", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                handled.add("raised");
+            }
+        });
+        sm.init();
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("foo", "bar");
+        EventBatch batch = new EventBatch(1).add("T1").add("unknown").add(EventTypes.lookup("T2"), payload);
 
+        // when:
+        sm.handleEvents(batch);
 
+        // then:
+        assertThat(handled, equalTo(Arrays.asList("T1", "T2 bar", "raised")));
+    }
 
+    @Test
+    public void transitionActionGetsContext() {
+        // given:
+        final List<String> transitions = new ArrayList<String>();
+        TransitionAction record = new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                transitions.add(context.getPreviousState() + " -> " + context.getNextState()
+                        + " " + context.getPayload().get("foo"));
+            }
+        };
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(record);
+        a1.addTransition("T1", a2, TransitionKind.External, record);
+        StateMachine model = new StateMachine(a1, a2);
+        StateMachineInstance first = model.newInstance();
+        StateMachineInstance second = model.newInstance();
+        first.init();
+        second.init();
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("foo", "bar");
 
+        // when:
+        first.handleEvent("T1", payload);
+        second.handleEvent("T1", payload);
 
+        // then:
+        assertThat(transitions, equalTo(Arrays.asList(
+                "a1 -> a2 bar", "a1 -> a2 bar", "a1 -> a2 bar", "a1 -> a2 bar")));
+    }
 
+    @Test
+    public void transitionActionCanRaiseEventsOnItsInstance() {
+        // given:
+        Action enterA3 = mock(Action.class);
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                context.getEventHandler().handleEvent("T2");
+            }
+        });
+        State a3 = new State("a3").onEnter(enterA3);
+        a1.addHandler("T1", a2, TransitionKind.External);
+        a2.addHandler("T2", a3, TransitionKind.External);
+        StateMachine model = new StateMachine(a1, a2, a3);
+        StateMachineInstance first = model.newInstance();
+        StateMachineInstance second = model.newInstance();
+        first.init();
+        second.init();
 
+        // when:
+        first.handleEvent("T1");
 
+        // then:
+        verify(enterA3).run();
+        assertThat(first.toString(), equalTo("a3"));
+        assertThat(second.toString(), equalTo("a1"));
+    }
 
+    @Test
+    public void eventGuardSeesEventName() {
+        // given:
+        Action enterA2 = mock(Action.class);
+        EventGuard onlyT2 = new EventGuard() {
+            @Override
+            public boolean evaluate(String eventName, Map<String, Object> payload) {
+                return eventName.equals("T2");
+            }
+        };
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(enterA2);
+        a1.addHandler("T1", a2, TransitionKind.External, onlyT2);
+        a1.addHandler("T2", a2, TransitionKind.External, onlyT2);
+        StateMachine sm = new StateMachine(a1, a2);
+        sm.init();
 
+        // when:
+        sm.handleEvent("T1");
 
+        // then:
+        verifyZeroInteractions(enterA2);
+
+        // when:
+        sm.handleEvent("T2");
+
+        // then:
+        verify(enterA2).run();
+    }
+
+    @Test
+    public void eventsOutsideTheModelAreIgnored() throws Exception {
+        // given:
+        Action onBar = mock(Action.class);
+        State a = new State("a");
+        State b = new State("b").addHandler("bar", a, TransitionKind.External, onBar);
+        a.addHandler("foo", b, TransitionKind.External);
+        StateMachineMetrics metrics = new StateMachineMetrics();
+        StateMachine sm = new StateMachine(a, b);
+        sm.setMetrics(metrics);
+        sm.setIgnoreUnknownEvents(true);
+        sm.init();
 
+        // when:
+        sm.handleEvent("broadcast");
+        boolean asyncHandled = sm.handleEventAsync("broadcast").get().isHandled();
+        sm.handleEvent("bar");
+        sm.handleEvent("foo");
+        sm.handleEvent("bar");
 
+        // then:
+        assertThat(asyncHandled, equalTo(false));
+        assertThat(sm.getIgnoredEventCount(), equalTo(3L));
+        assertThat(metrics.getUnhandledCounts().isEmpty(), equalTo(true));
+        assertThat(sm.toString(), equalTo("a"));
+        verify(onBar).run();
+    }
 
+    @Test
+    public void batchEventsOutsideTheConfigurationAreIgnored() {
+        // given:
+        Action onBar = mock(Action.class);
+        State a = new State("a");
+        State b = new State("b").addHandler("bar", a, TransitionKind.External, onBar);
+        a.addHandler("foo", b, TransitionKind.External);
+        StateMachineMetrics metrics = new StateMachineMetrics();
+        StateMachine sm = new StateMachine(a, b);
+        sm.setMetrics(metrics);
+        sm.setIgnoreUnknownEvents(true);
+        sm.init();
 
+        // when:
+        sm.handleEvents(new EventBatch().add("bar").add("broadcast").add("foo").add("bar"));
 
+        // then:
+        assertThat(sm.getIgnoredEventCount(), equalTo(2L));
+        assertThat(metrics.getUnhandledCounts().isEmpty(), equalTo(true));
+        assertThat(sm.toString(), equalTo("a"));
+        verify(onBar).run();
+    }
+}
@@ -0,0 +1,154 @@
+package de.artcom.hsm.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.EventJournal;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TimingWheel;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class EventJournalTest {
+
+    private File mDirectory;
+    private int mCount;
+    private int mStarted;
+    private StateMachine mModel;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("hsm-journal").toFile();
+        mCount = 0;
+        mStarted = 0;
+        State idle = new State("idle");
+        State counting = new State("counting");
+        Sub active = new Sub("active", counting).onEnter(new Action() {
+            @Override
+            public void run() {
+                mStarted++;
+            }
+        });
+        idle.addHandler("start", active, TransitionKind.External);
+        counting.addHandler("count", counting, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                mCount += (Integer) mPayload.get("by");
+            }
+        });
+        active.addHandler("stop", idle, TransitionKind.External);
+        mModel = new StateMachine(idle, active);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void replaysJournalAfterRestart() throws Exception {
+        // given:
+        StateMachineInstance instance = mModel.newInstance();
+        EventJournal journal = new EventJournal(mDirectory, EventJournal.SyncPolicy.ALWAYS, 100);
+        journal.open(instance);
+        instance.handleEvent("start");
+        instance.handleEvent("count", by(2));
+        instance.handleEvent("count", by(3));
+        journal.close();
+        mCount = 0;
+        mStarted = 0;
+
+        // when:
+        StateMachineInstance restarted = mModel.newInstance();
+        EventJournal reopened = new EventJournal(mDirectory, EventJournal.SyncPolicy.ALWAYS, 100);
+        reopened.open(restarted);
+
+        // then:
+        assertThat(restarted.toString(), equalTo("active/(counting)"));
+        assertThat(mCount, equalTo(5));
+        assertThat(mStarted, equalTo(1));
+        reopened.close();
+    }
+
+    @Test
+    public void replaysOnlyEventsAfterSnapshot() throws Exception {
+        // given:
+        StateMachineInstance instance = mModel.newInstance();
+        EventJournal journal = new EventJournal(mDirectory, EventJournal.SyncPolicy.ON_SNAPSHOT, 2);
+        journal.open(instance);
+        instance.handleEvent("start");
+        instance.handleEvent("count", by(2));
+        instance.handleEvent("count", by(3));
+        journal.close();
+        mCount = 0;
+        mStarted = 0;
+
+        // when:
+        StateMachineInstance restarted = mModel.newInstance();
+        EventJournal reopened = new EventJournal(mDirectory, EventJournal.SyncPolicy.ON_SNAPSHOT, 2);
+        reopened.open(restarted);
+
+        // then:
+        assertThat(restarted.toString(), equalTo("active/(counting)"));
+        assertThat(mCount, equalTo(5));
+        assertThat(mStarted, equalTo(0));
+        reopened.close();
+    }
+
+    @Test
+    public void keepsTransitionsCausedByTimeouts() throws Exception {
+        // given:
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        TimingWheel timingWheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+                timedOut.countDown();
+            }
+        });
+        State waiting = new State("waiting").addTimeout(20, TimeUnit.MILLISECONDS, "timeout");
+        State expired = new State("expired");
+        waiting.addHandler("timeout", expired, TransitionKind.External);
+        StateMachine model = new StateMachine(waiting, expired);
+        model.setTimingWheel(timingWheel);
+        StateMachineInstance instance = model.newInstance();
+        EventJournal journal = new EventJournal(mDirectory, EventJournal.SyncPolicy.ALWAYS, 100);
+        journal.open(instance);
+        assertThat(timedOut.await(2, TimeUnit.SECONDS), equalTo(true));
+        journal.close();
+
+        // when:
+        StateMachineInstance restarted = model.newInstance();
+        EventJournal reopened = new EventJournal(mDirectory, EventJournal.SyncPolicy.ALWAYS, 100);
+        reopened.open(restarted);
+
+        // then:
+        assertThat(restarted.toString(), equalTo("expired"));
+        reopened.close();
+        timingWheel.stop();
+    }
+
+    private static Map<String, Object> by(int count) {
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("by", count);
+        return payload;
+    }
+}
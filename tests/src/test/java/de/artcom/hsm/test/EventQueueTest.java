@@ -0,0 +1,392 @@
+package de.artcom.hsm.test;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.EventPriority;
+import de.artcom.hsm.EventResult;
+import de.artcom.hsm.OverflowPolicy;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.TransitionAction;
+import de.artcom.hsm.TransitionContext;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class EventQueueTest {
+
+    private final List<Object> mTicks = Collections.synchronizedList(new ArrayList<Object>());
+    private final List<Exception> mRejected = new ArrayList<Exception>();
+    private final CountDownLatch mSlowStarted = new CountDownLatch(1);
+    private final CountDownLatch mSlowReleased = new CountDownLatch(1);
+
+    // "burst" raises ten ticks while it is handled, so all of them are queued
+    private StateMachine createStateMachine(int capacity, OverflowPolicy policy) {
+        StateMachine sm = createModel(capacity, policy);
+        sm.init();
+        return sm;
+    }
+
+    private StateMachine createModel(int capacity, OverflowPolicy policy) {
+        State a = new State("a");
+        a.addTransition("burst", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                for (int i = 0; i < 10; i++) {
+                    Map<String, Object> payload = new HashMap<String, Object>();
+                    payload.put("id", i);
+                    try {
+                        context.getEventHandler().handleEvent("tick", payload);
+                    } catch (RejectedExecutionException e) {
+                        mRejected.add(e);
+                    }
+                }
+            }
+        });
+        a.addHandler("slow", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                mSlowStarted.countDown();
+                try {
+                    mSlowReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        a.addHandler("tick", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                mTicks.add(mPayload.get("id"));
+            }
+        });
+        StateMachine sm = new StateMachine(a);
+        sm.setEventQueueCapacity(capacity, policy);
+        return sm;
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueueBounded() throws Exception {
+        // given:
+        StateMachine sm = createStateMachine(4, OverflowPolicy.DROP_NEWEST);
+
+        // when:
+        sendWhileBusy(sm, ticks(10));
+
+        // then:
+        assertThat(mTicks, equalTo((List<Object>) Arrays.<Object>asList(0, 1, 2, 3)));
+        assertThat(sm.getDroppedEventCount(), equalTo(6L));
+        assertThat(sm.getQueueHighWaterMark(), equalTo(4));
+        assertThat(sm.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestEvents() throws Exception {
+        // given:
+        StateMachine sm = createStateMachine(4, OverflowPolicy.DROP_OLDEST);
+
+        // when:
+        sendWhileBusy(sm, ticks(10));
+
+        // then:
+        assertThat(mTicks, equalTo((List<Object>) Arrays.<Object>asList(6, 7, 8, 9)));
+        assertThat(sm.getDroppedEventCount(), equalTo(6L));
+        assertThat(sm.getQueueHighWaterMark(), equalTo(4));
+    }
+
+    @Test
+    public void rejectSignalsTheProducer() throws Exception {
+        // given:
+        StateMachine sm = createStateMachine(4, OverflowPolicy.REJECT);
+
+        // when:
+        sendWhileBusy(sm, ticks(10));
+
+        // then:
+        assertThat(mTicks.size(), equalTo(4));
+        assertThat(mRejected.size(), equalTo(6));
+        assertThat(sm.getDroppedEventCount(), equalTo(6L));
+    }
+
+    @Test
+    public void eventsRaisedWhileHandlingEventsAreNeverDropped() {
+        // given:
+        StateMachine sm = createStateMachine(4, OverflowPolicy.REJECT);
+
+        // when:
+        sm.handleEvent("burst");
+
+        // then:
+        assertThat(mTicks, equalTo((List<Object>) Arrays.<Object>asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)));
+        assertThat(mRejected.size(), equalTo(0));
+        assertThat(sm.getDroppedEventCount(), equalTo(0L));
+        assertThat(sm.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void blockNeverHandlesEventsOnAsynchronousProducers() throws Exception {
+        // given:
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        State a = new State("a");
+        a.addHandler("slow", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                mSlowStarted.countDown();
+                try {
+                    mSlowReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        a.addHandler("tick", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+        final StateMachine sm = new StateMachine(a);
+        sm.setEventQueueCapacity(2, OverflowPolicy.BLOCK);
+        sm.init();
+        final CountDownLatch queueFull = new CountDownLatch(1);
+        final List<Future<EventResult>> results = new ArrayList<Future<EventResult>>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 6; i++) {
+                    if (i == 2) {
+                        queueFull.countDown();
+                    }
+                    results.add(sm.handleEventAsync("tick"));
+                }
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sm.handleEvent("slow");
+            }
+        });
+        consumer.start();
+        mSlowStarted.await(5, TimeUnit.SECONDS);
+        producer.start();
+
+        // when:
+        queueFull.await(5, TimeUnit.SECONDS);
+        mSlowReleased.countDown();
+        producer.join(5000);
+        for (Future<EventResult> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        consumer.join(5000);
+
+        // then:
+        assertThat(threads.size(), equalTo(6));
+        assertThat(threads.contains(producer), equalTo(false));
+    }
+
+    @Test
+    public void blockWaitsUntilTheQueueHasRoom() throws Exception {
+        // given:
+        final StateMachine sm = createStateMachine(2, OverflowPolicy.BLOCK);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sm.handleEvent("slow");
+            }
+        });
+        consumer.start();
+        mSlowStarted.await(5, TimeUnit.SECONDS);
+        final CountDownLatch queueFull = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    if (i == 2) {
+                        queueFull.countDown();
+                    }
+                    Map<String, Object> payload = new HashMap<String, Object>();
+                    payload.put("id", i);
+                    sm.handleEvent("tick", payload);
+                }
+            }
+        });
+        producer.start();
+
+        // when:
+        assertThat(queueFull.await(5, TimeUnit.SECONDS), equalTo(true));
+        // the producer parks while it waits for room
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        boolean parked = false;
+        while (!parked && System.nanoTime() < deadline) {
+            parked = producer.getState() == Thread.State.TIMED_WAITING;
+            Thread.yield();
+        }
+        int blockedTicks = mTicks.size();
+        mSlowReleased.countDown();
+        producer.join(5000);
+        consumer.join(5000);
+
+        // then:
+        assertThat(parked, equalTo(true));
+        assertThat(blockedTicks, equalTo(0));
+        assertThat(mTicks, equalTo((List<Object>) Arrays.<Object>asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)));
+        assertThat(sm.getDroppedEventCount(), equalTo(0L));
+        assertThat(sm.getQueueHighWaterMark(), equalTo(2));
+    }
+
+    @Test
+    public void blockRejectsOnceTheTimeoutIsUp() throws Exception {
+        // given:
+        StateMachine sm = createModel(2, OverflowPolicy.BLOCK);
+        sm.setBlockTimeout(20, TimeUnit.MILLISECONDS);
+        sm.init();
+
+        // when:
+        sendWhileBusy(sm, ticks(4));
+
+        // then:
+        assertThat(mTicks, equalTo((List<Object>) Arrays.<Object>asList(0, 1)));
+        assertThat(mRejected.size(), equalTo(2));
+        assertThat(sm.getDroppedEventCount(), equalTo(2L));
+    }
+
+    // "tick" raises "echo", events sent while "slow" is handled on another thread are queued
+    private StateMachine createLanedStateMachine(final List<String> handled) {
+        State a = new State("a");
+        a.addHandler("slow", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                mSlowStarted.countDown();
+                try {
+                    mSlowReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        a.addTransition("tick", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                handled.add("tick" + context.getPayload().get("id"));
+                context.getEventHandler().handleEvent("echo", context.getPayload());
+            }
+        });
+        a.addHandler("echo", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                handled.add("echo" + mPayload.get("id"));
+            }
+        });
+        a.addHandler("urgent", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                handled.add("urgent");
+            }
+        });
+        return new StateMachine(a);
+    }
+
+    private void sendWhileBusy(final StateMachine sm, String... eventNames) throws Exception {
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sm.handleEvent("slow");
+            }
+        });
+        consumer.start();
+        mSlowStarted.await(5, TimeUnit.SECONDS);
+        for (int i = 0; i < eventNames.length; i++) {
+            Map<String, Object> payload = new HashMap<String, Object>();
+            payload.put("id", i);
+            try {
+                sm.handleEvent(eventNames[i], payload);
+            } catch (RejectedExecutionException e) {
+                mRejected.add(e);
+            }
+        }
+        mSlowReleased.countDown();
+        consumer.join(5000);
+    }
+
+    private static String[] ticks(int count) {
+        String[] eventNames = new String[count];
+        Arrays.fill(eventNames, "tick");
+        return eventNames;
+    }
+
+    @Test
+    public void eventsAreHandledInOrderByDefault() throws Exception {
+        // given:
+        List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        StateMachine sm = createLanedStateMachine(handled);
+        sm.init();
+
+        // when:
+        sendWhileBusy(sm, "tick", "tick", "urgent");
+
+        // then:
+        assertThat(handled, equalTo(Arrays.asList("tick0", "tick1", "urgent", "echo0", "echo1")));
+    }
+
+    @Test
+    public void internalEventsAreHandledFirst() throws Exception {
+        // given:
+        List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        StateMachine sm = createLanedStateMachine(handled);
+        sm.setInternalEventsFirst(true);
+        sm.init();
+
+        // when:
+        sendWhileBusy(sm, "tick", "tick", "urgent");
+
+        // then:
+        assertThat(handled, equalTo(Arrays.asList("tick0", "echo0", "tick1", "echo1", "urgent")));
+    }
+
+    @Test
+    public void higherPrioritiesAreHandledFirst() throws Exception {
+        // given:
+        List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        StateMachine sm = createLanedStateMachine(handled);
+        sm.setInternalEventsFirst(true);
+        sm.setEventPriority("urgent", EventPriority.HIGH);
+        sm.init();
+
+        // when:
+        sendWhileBusy(sm, "tick", "tick", "urgent");
+
+        // then:
+        assertThat(handled, equalTo(Arrays.asList("urgent", "tick0", "echo0", "tick1", "echo1")));
+    }
+
+    @Test
+    public void lanesShareTheCapacity() throws Exception {
+        // given:
+        List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        StateMachine sm = createLanedStateMachine(handled);
+        sm.setEventPriority("urgent", EventPriority.HIGH);
+        sm.setEventQueueCapacity(2, OverflowPolicy.DROP_NEWEST);
+        sm.init();
+
+        // when:
+        sendWhileBusy(sm, "tick", "urgent", "tick", "urgent");
+
+        // then:
+        assertThat(handled, equalTo(Arrays.asList("urgent", "tick0", "echo0")));
+        assertThat(sm.getDroppedEventCount(), equalTo(2L));
+    }
+}
@@ -7,6 +7,7 @@ import java.util.Map;
 
 import de.artcom.hsm.Action;
 import de.artcom.hsm.Guard;
+import de.artcom.hsm.KeyedGuard;
 import de.artcom.hsm.State;
 import de.artcom.hsm.StateMachine;
 import de.artcom.hsm.TransitionKind;
@@ -114,4 +115,72 @@ public class GuardTest {
         verify(a1Action).run();
     }
 
+
+    @Test
+    public void keyedGuardsRouteByPayloadValue() {
+        // given:
+        Action[] enterActions = new Action[50];
+        State router = new State("router");
+        State[] targets = new State[enterActions.length + 1];
+        targets[0] = router;
+        for (int i = 0; i < enterActions.length; i++) {
+            enterActions[i] = mock(Action.class);
+            targets[i + 1] = new State("target" + i).onEnter(enterActions[i]);
+            router.addHandler("route", targets[i + 1], TransitionKind.External, new KeyedGuard("route", i));
+        }
+        StateMachine sm = new StateMachine(router, targets);
+        sm.init();
+
+        //when:
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("route", 42);
+        sm.handleEvent("route", payload);
+
+        //then:
+        verify(enterActions[42]).run();
+        verifyZeroInteractions(enterActions[41]);
+        verifyZeroInteractions(enterActions[43]);
+    }
+
+    @Test
+    public void keyedGuardsKeepTheOrderOfOtherGuards() {
+        // given:
+        Action enterFirst = mock(Action.class);
+        Action enterKeyed = mock(Action.class);
+        Action enterLast = mock(Action.class);
+        State a1 = new State("a1");
+        State first = new State("first").onEnter(enterFirst);
+        State keyed = new State("keyed").onEnter(enterKeyed);
+        State last = new State("last").onEnter(enterLast);
+        a1.addHandler("T1", first, TransitionKind.External, new Guard() {
+            @Override
+            public boolean evaluate(Map<String, Object> payload) {
+                return Boolean.TRUE.equals(payload.get("first"));
+            }
+        }).addHandler("T1", keyed, TransitionKind.External, new KeyedGuard("route", "keyed"))
+                .addHandler("T1", last, TransitionKind.External);
+        first.addHandler("back", a1, TransitionKind.External);
+        keyed.addHandler("back", a1, TransitionKind.External);
+        StateMachine sm = new StateMachine(a1, first, keyed, last);
+        sm.init();
+
+        //when:
+        Map<String, Object> firstAndKeyed = new HashMap<String, Object>();
+        firstAndKeyed.put("first", true);
+        firstAndKeyed.put("route", "keyed");
+        sm.handleEvent("T1", firstAndKeyed);
+        sm.handleEvent("back");
+        Map<String, Object> keyedOnly = new HashMap<String, Object>();
+        keyedOnly.put("route", "keyed");
+        sm.handleEvent("T1", keyedOnly);
+        sm.handleEvent("back");
+        Map<String, Object> otherRoute = new HashMap<String, Object>();
+        otherRoute.put("route", "other");
+        sm.handleEvent("T1", otherRoute);
+
+        //then:
+        verify(enterFirst).run();
+        verify(enterKeyed).run();
+        verify(enterLast).run();
+    }
 }
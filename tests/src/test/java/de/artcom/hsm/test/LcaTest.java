@@ -1,5 +1,6 @@
 package de.artcom.hsm.test;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.InOrder;
 
@@ -140,4 +141,56 @@ public class LcaTest {
         verifyZeroInteractions(exitM);
     }
 
+    @Test
+    public void compiledTransitionsUseLowestCommonAncestor() {
+        // given:
+        Action exitA1 = mock(Action.class);
+        Action exitA = mock(Action.class);
+        Action exitFoo = mock(Action.class);
+        State a1 = new State("a1").onExit(exitA1);
+        Sub a = new Sub("a", a1).onExit(exitA);
+        Sub foo = new Sub("foo", a).onExit(exitFoo);
+
+        Action enterB1 = mock(Action.class);
+        Action exitB1 = mock(Action.class);
+        Action enterB2 = mock(Action.class);
+        State b1 = new State("b1").onEnter(enterB1).onExit(exitB1);
+        State b2 = new State("b2").onEnter(enterB2);
+        Sub b = new Sub("b", b1, b2);
+        Sub bar = new Sub("bar", b);
+        StateMachine sm = new StateMachine(foo, bar);
+
+        a1.addHandler("T1", b1, TransitionKind.External);
+        b1.addHandler("T2", b2, TransitionKind.External);
+        sm.compile();
+        sm.init();
+
+        // when:
+        sm.handleEvent("T1");
+        sm.handleEvent("T2");
+
+        // then:
+        InOrder inOrder = inOrder(exitA1, exitA, exitFoo, enterB1, exitB1, enterB2);
+        inOrder.verify(exitA1).run();
+        inOrder.verify(exitA).run();
+        inOrder.verify(exitFoo).run();
+        inOrder.verify(enterB1).run();
+        inOrder.verify(exitB1).run();
+        inOrder.verify(enterB2).run();
+    }
+
+    @Test
+    public void compileFailsForTargetOutsideOfModel() {
+        // given:
+        State off = new State("off");
+        State on = new State("on").addHandler("toggle", off, TransitionKind.External);
+        StateMachine sm = new StateMachine(on);
+
+        // when:
+        try {
+            sm.compile();
+            Assert.fail("expected IllegalStateException since target State was not part of StateMachine");
+        } catch (IllegalStateException e) {
+        }
+    }
 }
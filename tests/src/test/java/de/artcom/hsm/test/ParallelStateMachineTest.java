@@ -1,8 +1,19 @@
 package de.artcom.hsm.test;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.InOrder;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
 import de.artcom.hsm.Action;
 import de.artcom.hsm.Parallel;
 import de.artcom.hsm.State;
@@ -10,10 +21,13 @@ import de.artcom.hsm.StateMachine;
 import de.artcom.hsm.Sub;
 import de.artcom.hsm.TransitionKind;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 
 public class ParallelStateMachineTest {
 
@@ -216,5 +230,123 @@ public class ParallelStateMachineTest {
         verify(p2Action, never()).run();
     }
 
+    @Test
+    public void canDispatchToRegionsConcurrently() {
+        // given:
+        final Set<String> regionThreads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch allRegionsRunning = new CountDownLatch(4);
+        StateMachine[] regions = new StateMachine[4];
+        for (int i = 0; i < regions.length; i++) {
+            State off = new State("off" + i);
+            State on = new State("on" + i).onEnter(new Action() {
+                @Override
+                public void run() {
+                    regionThreads.add(Thread.currentThread().getName());
+                    allRegionsRunning.countDown();
+                    try {
+                        allRegionsRunning.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            off.addHandler("switch", on, TransitionKind.External);
+            regions[i] = new StateMachine(off, on);
+        }
+        Action unhandledAction = mock(Action.class);
+        Parallel p = new Parallel("p", regions).concurrently(new ForkJoinPool(4));
+        p.addHandler("switch", p, TransitionKind.Internal, unhandledAction)
+                .addHandler("other", p, TransitionKind.Internal, unhandledAction);
+        StateMachine sm = new StateMachine(p);
+        sm.init();
+
+        // when:
+        sm.handleEvent("switch");
+        sm.handleEvent("other");
+
+        // then:
+        assertThat(allRegionsRunning.getCount(), equalTo(0L));
+        assertThat(regionThreads.size() > 1, equalTo(true));
+        assertThat(sm.getAllActiveStates().size(), equalTo(5));
+        verify(unhandledAction, times(1)).run();
+    }
+
+    @Test
+    public void concurrentRegionsSeeTheirOwnPayload() {
+        // given:
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch allRegionsWritten = new CountDownLatch(4);
+        StateMachine[] regions = new StateMachine[4];
+        for (int i = 0; i < regions.length; i++) {
+            final String region = "region" + i;
+            State off = new State("off" + i);
+            State on = new State("on" + i).onEnter(new Action() {
+                @Override
+                public void run() {
+                    mPayload.put("region", region);
+                    allRegionsWritten.countDown();
+                    try {
+                        allRegionsWritten.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    seen.add(region + "=" + mPayload.get("region"));
+                }
+            });
+            off.addHandler("switch", on, TransitionKind.External);
+            regions[i] = new StateMachine(off, on);
+        }
+        StateMachine sm = new StateMachine(new Parallel("p", regions).concurrently(new ForkJoinPool(4)));
+        sm.init();
+
+        // when:
+        sm.handleEvent("switch");
+
+        // then:
+        assertThat(seen, equalTo((Set<String>) new HashSet<String>(Arrays.asList(
+                "region0=region0", "region1=region1", "region2=region2", "region3=region3"))));
+    }
 
+    @Test
+    public void singleConcurrentRegionHandlingAnEventSeesItsOwnPayload() {
+        // given:
+        final Set<String> regionThreads = Collections.synchronizedSet(new HashSet<String>());
+        State on = new State("on");
+        on.addHandler("mark", on, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                regionThreads.add(Thread.currentThread().getName());
+                mPayload.put("marked", true);
+            }
+        });
+        StateMachine region0 = new StateMachine(on);
+        StateMachine region1 = new StateMachine(new State("idle"));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        StateMachine sm = new StateMachine(new Parallel("p", region0, region1).concurrently(pool));
+        sm.init();
+        Map<String, Object> payload = new HashMap<String, Object>();
+
+        // when:
+        sm.handleEvent("mark", payload);
+
+        // then:
+        assertThat(regionThreads.size(), equalTo(1));
+        assertThat(regionThreads.contains(Thread.currentThread().getName()), equalTo(false));
+        assertThat(payload.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void cantRunRegionsConcurrentlyOnceInitialized() {
+        // given:
+        Parallel p = new Parallel("p", new StateMachine(new State("a")), new StateMachine(new State("b")));
+        StateMachine sm = new StateMachine(p);
+        sm.init();
+
+        // when:
+        try {
+            p.concurrently(new ForkJoinPool(2));
+            Assert.fail("expected IllegalStateException since the model is in use");
+        } catch (IllegalStateException e) {
+        }
+    }
 }
@@ -0,0 +1,211 @@
+package de.artcom.hsm.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.artcom.hsm.EventGuard;
+import de.artcom.hsm.Payload;
+import de.artcom.hsm.PayloadKeys;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.TransitionAction;
+import de.artcom.hsm.TransitionContext;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class PayloadTest {
+
+    private static final int COUNT = Payload.key("count");
+    private static final int RATIO = Payload.key("ratio");
+    private static final int NAME = Payload.key("name");
+
+    @Test
+    public void typedValuesCanBeReadAsMap() {
+        // given:
+        Payload payload = new Payload().setInt(COUNT, 3).setDouble(RATIO, 0.5).setObject(NAME, "foo");
+
+        // when:
+        Map<String, Object> map = new HashMap<String, Object>(payload);
+
+        // then:
+        assertThat(map.size(), equalTo(3));
+        assertThat(map.get("count"), equalTo((Object) 3));
+        assertThat(map.get("ratio"), equalTo((Object) 0.5));
+        assertThat(map.get("name"), equalTo((Object) "foo"));
+    }
+
+    @Test
+    public void mapValuesCanBeReadTyped() {
+        // given:
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("count", 7L);
+        map.put("name", "bar");
+
+        // when:
+        Payload payload = Payload.of(map);
+
+        // then:
+        assertThat(payload.getLong(COUNT), equalTo(7L));
+        assertThat(payload.getObject(NAME), equalTo((Object) "bar"));
+        assertThat(payload.has(RATIO), equalTo(false));
+    }
+
+    @Test
+    public void undeclaredKeysAreNotInterned() {
+        // given:
+        Payload payload = new Payload().setInt(COUNT, 1);
+
+        // when:
+        payload.put("undeclared", 2L);
+        Payload copy = payload.copy();
+        copy.remove("undeclared");
+
+        // then:
+        assertThat(PayloadKeys.lookup("undeclared"), equalTo(PayloadKeys.UNKNOWN));
+        assertThat(payload.get("undeclared"), equalTo((Object) 2L));
+        assertThat(new HashMap<String, Object>(payload).size(), equalTo(2));
+        assertThat(copy.containsKey("undeclared"), equalTo(false));
+        assertThat(copy.size(), equalTo(1));
+    }
+
+    @Test
+    public void objectsAreReadTypedWithoutCasting() {
+        // given:
+        Payload payload = new Payload().setObject(COUNT, null).setObject(RATIO, 2.5f).setObject(NAME, "foo");
+
+        // when:
+        long missing = payload.getLong(COUNT);
+        boolean unset = payload.getBoolean(COUNT);
+        long converted = payload.getLong(RATIO);
+
+        // then:
+        assertThat(missing, equalTo(0L));
+        assertThat(unset, equalTo(false));
+        assertThat(converted, equalTo(2L));
+        try {
+            payload.getBoolean(NAME);
+            Assert.fail("IllegalArgumentException should raise when reading a string as boolean");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void guardsAndActionsSeeTypedPayload() {
+        // given:
+        final List<Long> counts = new ArrayList<Long>();
+        State a = new State("a");
+        State b = new State("b");
+        a.addTransition("go", b, TransitionKind.External, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                counts.add(context.getTypedPayload().getLong(COUNT));
+            }
+        }, new EventGuard() {
+            @Override
+            public boolean evaluate(String eventName, Map<String, Object> payload) {
+                return Payload.of(payload).getLong(COUNT) > 1;
+            }
+        });
+        StateMachine sm = new StateMachine(a, b);
+        sm.init();
+
+        // when:
+        sm.handleEvent("go", new Payload().setLong(COUNT, 1));
+        sm.handleEvent("go", new Payload().setLong(COUNT, 2));
+
+        // then:
+        assertThat(counts.size(), equalTo(1));
+        assertThat(counts.get(0), equalTo(2L));
+        assertThat(sm.toString(), equalTo("b"));
+    }
+
+    @Test
+    public void queuedPayloadIsCopied() {
+        // given:
+        final List<Long> counts = new ArrayList<Long>();
+        final Payload reused = new Payload();
+        State a = new State("a");
+        a.addTransition("first", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                // raised while handling an event, so it is queued
+                context.getEventHandler().handleEvent("second", reused.setLong(COUNT, 1));
+                reused.setLong(COUNT, 2);
+            }
+        });
+        a.addTransition("second", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                counts.add(context.getTypedPayload().getLong(COUNT));
+            }
+        });
+        StateMachine sm = new StateMachine(a);
+        sm.init();
+
+        // when:
+        sm.handleEvent("first");
+
+        // then:
+        assertThat(counts.size(), equalTo(1));
+        assertThat(counts.get(0), equalTo(1L));
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        // given:
+        Payload payload = new Payload().setLong(COUNT, 1).setObject(NAME, "foo");
+        Payload copy = payload.copy();
+
+        // when:
+        payload.setLong(COUNT, 2);
+        copy.setObject(NAME, "bar");
+        Payload cleared = copy.copy();
+        cleared.clear();
+
+        // then:
+        assertThat(payload.getLong(COUNT), equalTo(2L));
+        assertThat(payload.getObject(NAME), equalTo((Object) "foo"));
+        assertThat(copy.getLong(COUNT), equalTo(1L));
+        assertThat(copy.getObject(NAME), equalTo((Object) "bar"));
+        assertThat(copy.size(), equalTo(2));
+        assertThat(cleared.size(), equalTo(0));
+    }
+
+    @Test
+    public void queuedMapIsCopied() {
+        // given:
+        final List<Object> names = new ArrayList<Object>();
+        final Map<String, Object> reused = new HashMap<String, Object>();
+        State a = new State("a");
+        a.addTransition("first", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                reused.put("name", "foo");
+                context.getEventHandler().handleEvent("second", reused);
+                reused.put("name", "bar");
+            }
+        });
+        a.addTransition("second", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                names.add(context.getPayload().get("name"));
+            }
+        });
+        StateMachine sm = new StateMachine(a);
+        sm.init();
+
+        // when:
+        sm.handleEvent("first");
+
+        // then:
+        assertThat(names, equalTo((List<Object>) Arrays.<Object>asList("foo")));
+    }
+}
@@ -0,0 +1,150 @@
+package de.artcom.hsm.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.Parallel;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SnapshotTest {
+
+    @Test
+    public void restoreDoesNotEnterStates() {
+        // given:
+        Action enterB2 = mock(Action.class);
+        Action enterP2 = mock(Action.class);
+        State b1 = new State("b1");
+        State b2 = new State("b2").onEnter(enterB2);
+        State p1 = new State("p1");
+        State p2 = new State("p2").onEnter(enterP2);
+        Parallel p = new Parallel("p", new StateMachine(p1, p2), new StateMachine(new Sub("s", b1, b2)));
+        State a = new State("a");
+        a.addHandler("T1", b2, TransitionKind.External);
+        b2.addHandler("T2", p2, TransitionKind.External);
+        StateMachine model = new StateMachine(a, p);
+        StateMachineInstance source = model.newInstance();
+        source.init();
+        source.handleEvent("T1");
+        source.handleEvent("T2");
+        StateMachineInstance target = model.newInstance();
+
+        // when:
+        target.restore(source.snapshot());
+
+        // then:
+        assertThat(target.toString(), equalTo("p/(p2|s/(b1))"));
+        verify(enterB2, times(1)).run();
+        verify(enterP2, times(1)).run();
+    }
+
+    @Test
+    public void restoredInstanceHandlesQueuedEvents() {
+        // given:
+        Action enterA2 = mock(Action.class);
+        State a1 = new State("a1");
+        State a2 = new State("a2").onEnter(enterA2);
+        a1.addHandler("T1", a2, TransitionKind.External);
+        StateMachine model = new StateMachine(a1, a2);
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        model.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        StateMachineInstance source = model.newInstance();
+        source.init();
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("count", 42);
+        source.handleEventAsync("T1", payload);
+        StateMachineInstance target = model.newInstance();
+
+        // when:
+        byte[] snapshot = source.snapshot();
+        target.restore(snapshot);
+
+        // then:
+        assertThat(target.toString(), equalTo("a2"));
+        verify(enterA2, times(1)).run();
+        for (Runnable command : scheduled) {
+            command.run();
+        }
+        assertThat(source.toString(), equalTo("a2"));
+        verify(enterA2, times(2)).run();
+    }
+
+    @Test
+    public void cannotRestoreSnapshotOfOtherModel() {
+        // given:
+        StateMachine model = new StateMachine(new Sub("a", new State("a1")));
+        StateMachine other = new StateMachine(new State("b"));
+        StateMachineInstance source = other.newInstance();
+        source.init();
+
+        // when:
+        try {
+            model.newInstance().restore(source.snapshot());
+            Assert.fail("IllegalArgumentException should raise when restoring a snapshot of another model");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void cannotRestoreSnapshotWithCorruptLength() {
+        // given:
+        StateMachine model = new StateMachine(new State("a"));
+        StateMachineInstance source = model.newInstance();
+        source.init();
+        byte[] snapshot = source.snapshot();
+        // the event count follows the version, the number of state machines and the active state
+        byte[] corrupt = Arrays.copyOf(snapshot, 3 + 5);
+        corrupt[3] = corrupt[4] = corrupt[5] = corrupt[6] = (byte) 0xff;
+        corrupt[7] = 0x07;
+
+        // when:
+        try {
+            model.newInstance().restore(corrupt);
+            Assert.fail("IllegalArgumentException should raise when the event count exceeds the snapshot");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void cannotRestoreSnapshotWithNegativePosition() {
+        // given:
+        StateMachine model = new StateMachine(new State("a"));
+        StateMachineInstance source = model.newInstance();
+        source.init();
+        byte[] snapshot = source.snapshot();
+        // the position of the active state follows the version and the number of state machines
+        byte[] corrupt = Arrays.copyOf(snapshot, 2 + 5 + 1);
+        corrupt[2] = corrupt[3] = corrupt[4] = corrupt[5] = (byte) 0xff;
+        corrupt[6] = 0x0f;
+        corrupt[7] = 0;
+
+        // when:
+        try {
+            model.newInstance().restore(corrupt);
+            Assert.fail("IllegalArgumentException should raise when the position is negative");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package de.artcom.hsm.test;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.LatencyHistogram;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.StateMachineMetrics;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionAction;
+import de.artcom.hsm.TransitionContext;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class StateMachineMetricsTest {
+
+    @Test
+    public void recordsEventsTransitionsAndDwellTimes() {
+        // given:
+        State a = new State("a");
+        State b = new State("b");
+        a.addHandler("T1", b, TransitionKind.External);
+        b.addHandler("T1", a, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        StateMachineMetrics metrics = new StateMachineMetrics();
+        sm.setMetrics(metrics);
+        sm.init();
+
+        // when:
+        sm.handleEvent("T1");
+        sm.handleEvent("T1");
+        sm.handleEvent("T1");
+        sm.handleEvent("T2");
+
+        // then:
+        assertThat(metrics.getEventLatencies().get("T1").getCount(), equalTo(3L));
+        assertThat(metrics.getEventLatencies().get("T2").getCount(), equalTo(1L));
+        assertThat(metrics.getUnhandledCounts().get("T2"), equalTo(1L));
+        assertThat(metrics.getUnhandledCounts().containsKey("T1"), equalTo(false));
+        assertThat(metrics.getTransitionCounts().get("a -T1-> b"), equalTo(2L));
+        assertThat(metrics.getTransitionCounts().get("b -T1-> a"), equalTo(1L));
+        assertThat(metrics.getDwellTimes().get("a").getCount(), equalTo(2L));
+        assertThat(metrics.getDwellTimes().get("b").getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void recordsQueueDepthOfRaisedEvents() {
+        // given:
+        State a = new State("a");
+        final StateMachine sm = new StateMachine(a);
+        a.addHandler("burst", a, TransitionKind.Internal, new Action() {
+            @Override
+            public void run() {
+                sm.handleEvent("T1");
+                sm.handleEvent("T2");
+                sm.handleEvent("T3");
+            }
+        });
+        StateMachineMetrics metrics = new StateMachineMetrics();
+        sm.setMetrics(metrics);
+        sm.init();
+
+        // when:
+        sm.handleEvent("burst");
+
+        // then:
+        assertThat(metrics.getMaxQueueDepth(), equalTo(3));
+        assertThat(metrics.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void dwellTimesOfNestedStatesDontCollide() {
+        // given:
+        State a1 = new State("idle");
+        State b1 = new State("idle");
+        Sub a = new Sub("a", a1);
+        Sub b = new Sub("b", b1);
+        a.addHandler("T1", b, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        StateMachineMetrics metrics = new StateMachineMetrics();
+        sm.setMetrics(metrics);
+        sm.init();
+
+        // when:
+        sm.handleEvent("T1");
+
+        // then:
+        assertThat(metrics.getDwellTimes().get("a/idle").getCount(), equalTo(1L));
+        assertThat(metrics.getDwellTimes().containsKey("b/idle"), equalTo(false));
+        assertThat(metrics.getDwellTime(a1).getCount(), equalTo(1L));
+        assertThat(metrics.getDwellTime(b1).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void queueDepthAddsUpAllInstances() {
+        // given:
+        final List<StateMachineInstance> instances = new ArrayList<StateMachineInstance>();
+        final int[] queueDepth = new int[1];
+        final StateMachineMetrics metrics = new StateMachineMetrics();
+        // "burst" raises two events on its own instance, then bursts the second instance
+        State a = new State("a");
+        a.addTransition("burst", a, TransitionKind.Internal, new TransitionAction() {
+            @Override
+            public void run(TransitionContext context) {
+                context.getEventHandler().handleEvent("T1");
+                context.getEventHandler().handleEvent("T1");
+                if (context.getEventHandler() == instances.get(0)) {
+                    instances.get(1).handleEvent("burst");
+                } else {
+                    queueDepth[0] = metrics.getQueueDepth();
+                }
+            }
+        });
+        StateMachine sm = new StateMachine(a);
+        sm.setMetrics(metrics);
+        instances.add(sm.newInstance());
+        instances.add(sm.newInstance());
+        instances.get(0).init();
+        instances.get(1).init();
+
+        // when:
+        instances.get(0).handleEvent("burst");
+
+        // then:
+        assertThat(queueDepth[0], equalTo(4));
+        assertThat(metrics.getQueueDepth(), equalTo(0));
+    }
+
+    @Test
+    public void histogramReportsPercentiles() {
+        // given:
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // when:
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        // then:
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), equalTo(1000L));
+        assertThat(snapshot.getMax(), equalTo(1000L));
+        assertThat(snapshot.getMean(), equalTo(500.5));
+        assertThat(Math.abs(snapshot.getPercentile(50) - 500) <= 500 / 16, equalTo(true));
+        assertThat(Math.abs(snapshot.getPercentile(99) - 990) <= 990 / 16, equalTo(true));
+    }
+}
@@ -11,6 +11,8 @@ import de.artcom.hsm.TransitionKind;
 
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class SubStateMachineTest {
 
@@ -72,4 +74,30 @@ public class SubStateMachineTest {
         inOrder.verify(onEnterQuiet).run();
     }
 
+    @Test
+    public void innermostHandlerWinsInEveryConfiguration() {
+        //given:
+        Action onVolumeQuiet = mock(Action.class);
+        Action onVolumeOn = mock(Action.class);
+        State quiet = new State("quiet");
+        quiet.addHandler("volume", quiet, TransitionKind.Internal, onVolumeQuiet);
+        State loud = new State("loud");
+        quiet.addHandler("louder", loud, TransitionKind.External);
+        Sub on = new Sub("on", new StateMachine(quiet, loud));
+        on.addHandler("volume", on, TransitionKind.Internal, onVolumeOn);
+        StateMachine sm = new StateMachine(on);
+        sm.init();
+
+        //when:
+        sm.handleEvent("volume");
+        sm.handleEvent("volume");
+        sm.handleEvent("louder");
+        sm.handleEvent("volume");
+        sm.handleEvent("volume");
+        sm.handleEvent("volume");
+
+        //then:
+        verify(onVolumeQuiet, times(2)).run();
+        verify(onVolumeOn, times(3)).run();
+    }
 }
@@ -0,0 +1,120 @@
+package de.artcom.hsm.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import de.artcom.hsm.Action;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TimingWheel;
+import de.artcom.hsm.TransitionKind;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class TimeoutTest {
+
+    private TimingWheel mTimingWheel;
+
+    @Before
+    public void setUp() {
+        mTimingWheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mTimingWheel.stop();
+    }
+
+    @Test
+    public void timeoutRaisesEvent() throws Exception {
+        // given:
+        final CountDownLatch timedOut = new CountDownLatch(2);
+        State waiting = new State("waiting").addTimeout(20, TimeUnit.MILLISECONDS, "timeout");
+        State done = new State("done").onEnter(new Action() {
+            @Override
+            public void run() {
+                timedOut.countDown();
+            }
+        });
+        waiting.addHandler("timeout", done, TransitionKind.External);
+        StateMachine model = new StateMachine(waiting, done);
+        model.setTimingWheel(mTimingWheel);
+        StateMachineInstance first = model.newInstance();
+        StateMachineInstance second = model.newInstance();
+
+        // when:
+        first.init();
+        second.init();
+
+        // then:
+        assertThat(timedOut.await(2, TimeUnit.SECONDS), equalTo(true));
+        assertThat(first.toString(), equalTo("done"));
+        assertThat(second.toString(), equalTo("done"));
+    }
+
+    @Test
+    public void exitCancelsTimeout() throws Exception {
+        // given:
+        Action enterExpired = mock(Action.class);
+        final CountDownLatch left = new CountDownLatch(1);
+        State waiting = new State("waiting").addTimeout(30, TimeUnit.MILLISECONDS, "timeout");
+        Sub a = new Sub("a", waiting);
+        State b = new State("b").addTimeout(60, TimeUnit.MILLISECONDS, "left");
+        State expired = new State("expired").onEnter(enterExpired);
+        State c = new State("c").onEnter(new Action() {
+            @Override
+            public void run() {
+                left.countDown();
+            }
+        });
+        waiting.addHandler("timeout", expired, TransitionKind.External);
+        a.addHandler("leave", b, TransitionKind.External);
+        b.addHandler("left", c, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b, expired, c);
+        sm.setTimingWheel(mTimingWheel);
+        sm.init();
+
+        // when:
+        sm.handleEvent("leave");
+
+        // then:
+        assertThat(left.await(2, TimeUnit.SECONDS), equalTo(true));
+        assertThat(sm.toString(), equalTo("c"));
+        verifyZeroInteractions(enterExpired);
+    }
+
+    @Test
+    public void stoppedWheelDropsTimeouts() throws Exception {
+        // given:
+        Action enterDone = mock(Action.class);
+        State waiting = new State("waiting").addTimeout(1, TimeUnit.MILLISECONDS, "timeout");
+        State done = new State("done").onEnter(enterDone);
+        waiting.addHandler("timeout", done, TransitionKind.External);
+        StateMachine sm = new StateMachine(waiting, done);
+        sm.setTimingWheel(mTimingWheel);
+        mTimingWheel.stop();
+
+        // when:
+        sm.init();
+        Thread.sleep(30);
+
+        // then:
+        assertThat(sm.toString(), equalTo("waiting"));
+        verifyZeroInteractions(enterDone);
+    }
+}
@@ -0,0 +1,173 @@
+package de.artcom.hsm.test;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.artcom.hsm.Guard;
+import de.artcom.hsm.KeyedGuard;
+import de.artcom.hsm.State;
+import de.artcom.hsm.StateMachine;
+import de.artcom.hsm.StateMachineInstance;
+import de.artcom.hsm.Sub;
+import de.artcom.hsm.TransitionKind;
+import de.artcom.hsm.TransitionListener;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TransitionListenerTest {
+
+    private static class RecordingListener extends TransitionListener {
+
+        private final List<String> mCalls = new ArrayList<String>();
+
+        @Override
+        public void onEventReceived(StateMachineInstance instance, String eventName, Map<String, Object> payload) {
+            mCalls.add("received " + eventName);
+        }
+
+        @Override
+        public void onHandlerSelected(StateMachineInstance instance, State state, String eventName, State targetState, TransitionKind kind) {
+            mCalls.add("selected " + state.getId() + " " + eventName + " " + targetState.getId() + " " + kind);
+        }
+
+        @Override
+        public void onGuardRejected(StateMachineInstance instance, State state, String eventName, State targetState) {
+            mCalls.add("rejected " + state.getId() + " " + eventName + " " + targetState.getId());
+        }
+
+        @Override
+        public void onStateExited(StateMachineInstance instance, State state) {
+            mCalls.add("exited " + state.getId());
+        }
+
+        @Override
+        public void onStateEntered(StateMachineInstance instance, State state) {
+            mCalls.add("entered " + state.getId());
+        }
+
+        @Override
+        public void onEventUnhandled(StateMachineInstance instance, String eventName, Map<String, Object> payload) {
+            mCalls.add("unhandled " + eventName);
+        }
+    }
+
+    @Test
+    public void listenerReceivesTransitionCallbacks() {
+        // given:
+        State a1 = new State("a1");
+        Sub a = new Sub("a", a1);
+        State b = new State("b");
+        State c = new State("c");
+        a1.addHandler("T1", c, TransitionKind.External, new Guard() {
+            @Override
+            public boolean evaluate(Map<String, Object> payload) {
+                return false;
+            }
+        }).addHandler("T1", b, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b, c);
+        RecordingListener listener = new RecordingListener();
+        sm.addTransitionListener(listener);
+        sm.init();
+
+        // when:
+        sm.handleEvent("T1");
+        sm.handleEvent("T2");
+
+        // then:
+        assertThat(listener.mCalls, equalTo(Arrays.asList(
+                "entered a",
+                "entered a1",
+                "received T1",
+                "rejected a1 T1 c",
+                "selected a1 T1 b External",
+                "exited a1",
+                "exited a",
+                "entered b",
+                "received T2",
+                "unhandled T2")));
+    }
+
+    @Test
+    public void removedListenerIsNotCalled() {
+        // given:
+        State a = new State("a");
+        State b = new State("b");
+        a.addHandler("T1", b, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        sm.addTransitionListener(first);
+        sm.addTransitionListener(second);
+        sm.init();
+
+        // when:
+        sm.removeTransitionListener(first);
+        sm.handleEvent("T1");
+
+        // then:
+        assertThat(first.mCalls, equalTo(Arrays.asList("entered a")));
+        assertThat(second.mCalls, equalTo(Arrays.asList("entered a", "received T1", "selected a T1 b External", "exited a", "entered b")));
+    }
+
+    @Test
+    public void listenerReceivesTheInstance() {
+        // given:
+        final List<StateMachineInstance> instances = new ArrayList<StateMachineInstance>();
+        State a = new State("a");
+        State b = new State("b");
+        a.addHandler("T1", b, TransitionKind.External);
+        StateMachine sm = new StateMachine(a, b);
+        sm.addTransitionListener(new TransitionListener() {
+            @Override
+            public void onStateEntered(StateMachineInstance instance, State state) {
+                instances.add(instance);
+            }
+        });
+        StateMachineInstance first = sm.newInstance();
+        StateMachineInstance second = sm.newInstance();
+        first.init();
+        second.init();
+
+        // when:
+        second.handleEvent("T1");
+
+        // then:
+        assertThat(instances, equalTo(Arrays.asList(first, second, second)));
+    }
+
+    @Test
+    public void listenerSeesRejectedKeyedGuards() {
+        // given:
+        State a = new State("a");
+        State b = new State("b");
+        State c = new State("c");
+        State d = new State("d");
+        a.addHandler("T1", b, TransitionKind.External, new KeyedGuard("route", "b"))
+                .addHandler("T1", c, TransitionKind.External, new KeyedGuard("route", "c"))
+                .addHandler("T1", d, TransitionKind.External, new KeyedGuard("route", "d"));
+        StateMachine sm = new StateMachine(a, b, c, d);
+        RecordingListener listener = new RecordingListener();
+        sm.addTransitionListener(listener);
+        sm.init();
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("route", "c");
+
+        // when:
+        sm.handleEvent("T1", payload);
+
+        // then:
+        assertThat(listener.mCalls, equalTo(Arrays.asList(
+                "entered a",
+                "received T1",
+                "rejected a T1 b",
+                "selected a T1 c External",
+                "exited a",
+                "entered c")));
+    }
+}